@@ -128,9 +128,10 @@ public class Aggregate extends Operator {
         		agg=new StringAggregator(gfield, gfieldtype, afield, aop);
         	}
         	
-        	while(child.hasNext()){
-        		Tuple t=child.next();
-        		agg.mergeTupleIntoGroup(t);
+        	// the child is read in batches, whatever its consumer reads
+        	TupleBatch b;
+        	while((b=TupleBatch.next(child, TupleBatch.DEFAULT_SIZE))!=null){
+        		agg.mergeBatchIntoGroups(b);
         	}
         	
         	iterator=agg.iterator();
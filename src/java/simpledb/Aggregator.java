@@ -76,6 +76,17 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the selected rows of a batch into the aggregate, as
+     * mergeTupleIntoGroup merges each.
+     *
+     * @param batch rows containing an aggregate field and a group-by field
+     */
+    public default void mergeBatchIntoGroups(TupleBatch batch) {
+        for (int k = 0; k < batch.numSelected(); k++)
+            mergeTupleIntoGroup(batch.getTuple(batch.selected(k)));
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
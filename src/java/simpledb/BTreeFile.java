@@ -25,6 +25,7 @@ public class BTreeFile implements DbFile {
 	private final int tableid ;
 	private int keyField;
 	private LockManager lock;
+	private final PositionalFile pf;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -40,6 +41,7 @@ public class BTreeFile implements DbFile {
 		this.keyField = key;
 		this.td = td;
 		this.lock = new LockManager(0, 0);
+		this.pf = new PositionalFile(f);
 	}
 
 	/**
@@ -80,13 +82,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = pf.read(pageBuf, 0);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -100,12 +100,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = pf.read(pageBuf, pageOffset(id.getPageNumber()));
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -129,17 +124,16 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	/**
+	 * @return the offset in the file of the (non root pointer) page pgNo
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo-1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -150,15 +144,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			pf.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			pf.write(data, pageOffset(page.getId().getPageNumber()));
 		}
 	}
 	
@@ -675,29 +665,18 @@ public class BTreeFile implements DbFile {
 			if(isRightSibling) {
 				Iterator<Tuple> it = sibling.iterator();
 				t = it.next();
-				//t = sibling.getTuple(0);
-				
-				sibling.deleteTuple(t);
-				page.insertTuple(t);
-				entry.setKey(t.getField(this.keyField));
-				
 			}
 			else {
-				Iterator<Tuple> it = sibling.iterator();
-				while(it.hasNext()) {
-					t = it.next();
-				}
-				//t = sibling.getTuple(sibling.getNumTuples() - 1);
-				
-				sibling.deleteTuple(t);
-				page.insertTuple(t);
-				entry.setKey(t.getField(this.keyField));
+				Iterator<Tuple> it = sibling.reverseIterator();
+				t = it.next();
 			}
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
 		}
-		
-		
-		
-		
+		// the key of the parent entry is the first key of the right-hand page
+		BTreeLeafPage rightPage = isRightSibling ? sibling : page;
+		entry.setKey(rightPage.iterator().next().getField(this.keyField));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -1053,13 +1032,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				pf.write(emptyRootPtrData, 0);
+				pf.write(emptyLeafData, emptyRootPtrData.length);
 			}
 		}
 
@@ -1115,11 +1091,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				pf.append(emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1150,10 +1123,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		pf.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
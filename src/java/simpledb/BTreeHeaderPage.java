@@ -23,8 +23,10 @@ public class BTreeHeaderPage implements Page {
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
 
+	// the before image, unless it is still the current contents
 	byte[] oldData;
-	private final Byte oldDataLock=new Byte((byte)0);
+	private boolean beforeImagePending = false;
+	private final Object oldDataLock=new Object();
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -61,13 +63,15 @@ public class BTreeHeaderPage implements Page {
 
 		dis.close();
 
-		setBeforeImage();
+		// the bytes read are the before image
+		oldData = data;
 	}
 
 	/**
 	 * Initially mark all slots in the header used.
 	 */
 	public void init() {
+		beforeWrite();
 		for (int i=0; i<header.length; i++)
 			header[i] = (byte) 0xFF;
 	}
@@ -92,12 +96,7 @@ public class BTreeHeaderPage implements Page {
         -- used by recovery */
 	public BTreeHeaderPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeHeaderPage(pid,oldDataRef);
+			return new BTreeHeaderPage(pid,getBeforeImageData());
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -106,10 +105,33 @@ public class BTreeHeaderPage implements Page {
 		return null;
 	}
 
+	public byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return beforeImagePending ? getPageData() : oldData;
+		}
+	}
+
+	/**
+	 * The contents of the page become its before image.  They are only
+	 * serialized when the page is next modified (see beforeWrite).
+	 */
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			beforeImagePending = true;
+		}
+	}
+
+	// capture the before image before the first modification since
+	// setBeforeImage
+	private void beforeWrite() {
+		synchronized(oldDataLock)
+		{
+			if (beforeImagePending) {
+				oldData = getPageData();
+				beforeImagePending = false;
+			}
 		}
 	}
 
@@ -211,6 +233,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setPrevPageId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			prevPage = 0;
 		}
@@ -231,6 +254,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setNextPageId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			nextPage = 0;
 		}
@@ -277,6 +301,7 @@ public class BTreeHeaderPage implements Page {
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
 	public void markSlotUsed(int i, boolean value) {
+		beforeWrite();
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 
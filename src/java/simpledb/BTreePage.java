@@ -21,8 +21,10 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	// the before image, unless it is still the current contents
 	protected byte[] oldData;
-	protected final Byte oldDataLock=new Byte((byte)0);
+	protected boolean beforeImagePending = false;
+	protected final Object oldDataLock=new Object();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -75,6 +77,38 @@ public abstract class BTreePage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	public byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return beforeImagePending ? getPageData() : oldData;
+		}
+	}
+
+	/**
+	 * The contents of the page become its before image.  They are only
+	 * serialized when the page is next modified (see beforeWrite).
+	 */
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			beforeImagePending = true;
+		}
+	}
+
+	/**
+	 * Capture the before image if the page has not been modified since
+	 * setBeforeImage.  Every method that modifies the page calls this first.
+	 */
+	protected void beforeWrite() {
+		synchronized(oldDataLock)
+		{
+			if (beforeImagePending) {
+				oldData = getPageData();
+				beforeImagePending = false;
+			}
+		}
+	}
+
 	/**
 	 * Get the parent id of this page
 	 * @return the parent id
@@ -92,6 +126,7 @@ public abstract class BTreePage implements Page {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setParentId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			throw new DbException("parent id must not be null");
 		}
@@ -22,7 +22,9 @@ public class BTreeRootPtrPage implements Page {
 	private int rootCategory;
 	private int header;
 
+	// the before image, unless it is still the current contents
 	private byte[] oldData;
+	private boolean beforeImagePending = false;
 
 	/**
 	 * Constructor.
@@ -44,11 +46,29 @@ public class BTreeRootPtrPage implements Page {
 		// read in the header pointer
 		header = dis.readInt();
 		
-		setBeforeImage();
+		// the bytes read are the before image
+		oldData = data;
 	}
 
-	public void setBeforeImage() {
-		oldData = getPageData().clone();
+	/**
+	 * The contents of the page become its before image.  They are only
+	 * serialized when the page is next modified (see beforeWrite).
+	 */
+	public synchronized void setBeforeImage() {
+		beforeImagePending = true;
+	}
+
+	public synchronized byte[] getBeforeImageData() {
+		return beforeImagePending ? getPageData() : oldData;
+	}
+
+	// capture the before image before the first modification since
+	// setBeforeImage
+	private synchronized void beforeWrite() {
+		if (beforeImagePending) {
+			oldData = getPageData();
+			beforeImagePending = false;
+		}
 	}
 
 	/**
@@ -142,7 +162,7 @@ public class BTreeRootPtrPage implements Page {
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
 		try {
-			return new BTreeRootPtrPage(pid,oldData);
+			return new BTreeRootPtrPage(pid,getBeforeImageData());
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -168,6 +188,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setRootId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			root = 0;
 		}
@@ -200,6 +221,7 @@ public class BTreeRootPtrPage implements Page {
 	 * @throws DbException if the id is invalid
 	 */
 	public void setHeaderId(BTreePageId id) throws DbException {
+		beforeWrite();
 		if(id == null) {
 			header = 0;
 		}
@@ -0,0 +1,23 @@
+package simpledb;
+
+/**
+ * BatchIterator is implemented by iterators that can return their tuples a
+ * batch at a time, as well as one at a time through OpIterator. A consumer
+ * uses one or the other between open (or rewind) and close; tuples already
+ * returned by next are not returned again by nextBatch.
+ *
+ * @see TupleBatch#next
+ */
+public interface BatchIterator extends OpIterator {
+
+    /**
+     * Returns the next tuples of the iterator as a batch.
+     *
+     * @param maxRows
+     *            the most rows the batch may hold
+     * @return a batch with at least one selected row, or null if the
+     *         iteration is finished.
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch(int maxRows) throws DbException, TransactionAbortedException;
+}
@@ -14,6 +14,20 @@ import java.util.concurrent.ThreadFactory;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Eviction follows a STEAL policy: clean pages are evicted first, but when
+ * every page is dirty a dirty page is written out, after its update record
+ * has been forced to the log. If the transaction that dirtied it aborts, its
+ * changes are undone from the log by {@link LogFile#rollback}.
+ * <p>
+ * In NO-FORCE mode (see {@link #setNoForce}) a commit does not write the
+ * transaction's pages: their after images are logged, and the commit is
+ * durable once the log is forced up to the commit record. The pages stay
+ * in the pool marked as unwritten, and a background writer writes them out
+ * in page order, then records a redo point in the log so that recovery
+ * need not redo the records before it. The unwritten pages, each with the
+ * log sequence number of its oldest unwritten record, are the dirty-page
+ * table that fuzzy checkpoints record (see {@link LogFile#logCheckpoint}).
  * 
  * @Threadsafe, all fields are final
  */
@@ -36,10 +50,34 @@ public class BufferPool {
     private ConcurrentHashMap<PageId, Page> pgBufferPool;
     private int capacity;
 
+    private final ReplacementPolicy replacer;
+
+    /** System property selecting the page replacement policy at startup:
+        "2q" (the default) or "clock". */
+    public static final String REPLACEMENT_POLICY_PROPERTY = "simpledb.replacement";
+
+    /** System property enabling NO-FORCE mode at startup: "true" or
+        "false" (the default). */
+    public static final String NO_FORCE_PROPERTY = "simpledb.noforce";
+
+    /** Milliseconds between rounds of the NO-FORCE background writer */
+    public static final long WRITER_INTERVAL_MS = 50;
+
+    /** The most pages the background writer writes in one round */
+    public static final int WRITER_BATCH_PAGES = 64;
+
+    private volatile boolean noForce = false;
+    private Thread writer;
+    // pages whose committed contents are logged but not yet on disk, with
+    // the log sequence number of the oldest record not on disk
+    private final ConcurrentHashMap<PageId, Long> unwritten =
+            new ConcurrentHashMap<PageId, Long>();
+
     private LockManager lockMgr;
+    // transactions whose uncommitted pages were written out by evictPage
+    private final Set<TransactionId> stolenFrom =
+            Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
     private static int TRANSATION_FACTOR = 2;
-    // timeout 1s for deadlock detection
-    private static int DEFAUT_MAXTIMEOUT = 5000;
     // int size;
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -47,12 +85,158 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, createReplacementPolicy(
+                System.getProperty(REPLACEMENT_POLICY_PROPERTY, "2q"), numPages));
+        setNoForce(Boolean.getBoolean(NO_FORCE_PROPERTY));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * according to the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param replacer the policy choosing which page to evict
+     */
+    public BufferPool(int numPages, ReplacementPolicy replacer) {
         // some code goes here
         this.capacity = numPages;
         this.pgBufferPool = new ConcurrentHashMap<PageId, Page>();
+        this.replacer = replacer;
         this.lockMgr = new LockManager(numPages, TRANSATION_FACTOR * numPages);
     }
+
+    /** @return the most pages this buffer pool holds */
+    public int getNumPages() {
+        return capacity;
+    }
+
+    /**
+     * Create the replacement policy with the specified name.
+     *
+     * @param name "clock" or "2q"
+     * @param numPages the capacity of the buffer pool
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static ReplacementPolicy createReplacementPolicy(String name, int numPages) {
+        if (name.equalsIgnoreCase("clock"))
+            return new ClockReplacementPolicy(numPages);
+        if (name.equalsIgnoreCase("2q"))
+            return new TwoQueueReplacementPolicy(numPages);
+        throw new IllegalArgumentException("unknown replacement policy " + name);
+    }
     
+    /**
+     * Choose between FORCE and NO-FORCE commits. In NO-FORCE mode a
+     * background writer is started; pages committed but not yet written are
+     * still written by flushAllPages, by eviction, and by the writer after
+     * it is turned off.
+     *
+     * @param noForce true to commit through the log alone
+     */
+    public synchronized void setNoForce(boolean noForce) {
+        this.noForce = noForce;
+        if (noForce && writer == null) {
+            writer = new Thread(new Runnable() {
+                public void run() {
+                    runWriter();
+                }
+            }, "simpledb-page-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    public boolean isNoForce() {
+        return noForce;
+    }
+
+    /**
+     * @return the number of committed pages not yet written to disk; once it
+     *         is 0, the redo point of the last write is in the log
+     */
+    public synchronized int numUnwrittenPages() {
+        return unwritten.size();
+    }
+
+    /**
+     * The dirty-page table for a checkpoint: each committed page not yet
+     * written, with the log sequence number of its oldest record that is
+     * not on disk. The caller holds this pool's monitor, so that no page is
+     * logged meanwhile.
+     */
+    Map<PageId, Long> dirtyPageTable() {
+        return new HashMap<PageId, Long>(unwritten);
+    }
+
+    private void runWriter() {
+        try {
+            while (true) {
+                Thread.sleep(WRITER_INTERVAL_MS);
+                // a pool replaced by Database.reset or resetBufferPool stops
+                if (Database.getBufferPool() != this)
+                    break;
+                while (writeUnwritten(WRITER_BATCH_PAGES) > 0)
+                    ;
+                synchronized (this) {
+                    if (!noForce && unwritten.isEmpty()) {
+                        writer = null;
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stop writing
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            writer = null;
+        }
+    }
+
+    /**
+     * Write up to max committed pages not yet on disk, in page order, after
+     * forcing the log. When none are left, record a redo point in the log.
+     *
+     * @return the number of pages written
+     */
+    synchronized int writeUnwritten(int max) throws IOException {
+        ArrayList<PageId> batch = new ArrayList<PageId>();
+        for (PageId pid : unwritten.keySet()) {
+            Page pg = pgBufferPool.get(pid);
+            // pages updated again by a running transaction wait for it
+            if (pg == null)
+                unwritten.remove(pid);
+            else if (pg.isDirty() == null)
+                batch.add(pid);
+        }
+        if (batch.isEmpty())
+            return 0;
+        Collections.sort(batch, new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                if (a.getTableId() != b.getTableId())
+                    return a.getTableId() < b.getTableId() ? -1 : 1;
+                return Integer.compare(a.getPageNumber(), b.getPageNumber());
+            }
+        });
+        if (batch.size() > max)
+            batch.subList(max, batch.size()).clear();
+        Database.getLogFile().force();
+        for (PageId pid : batch) {
+            Page pg = pgBufferPool.get(pid);
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pg);
+            unwritten.remove(pid);
+        }
+        if (unwritten.isEmpty())
+            Database.getLogFile().logRedoPoint();
+        return batch.size();
+    }
+
+    /** @return true if pid has changes not yet written to disk */
+    private boolean needsWrite(PageId pid, Page p) {
+        return p != null && (p.isDirty() != null || unwritten.containsKey(pid));
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -93,7 +277,7 @@ public class BufferPool {
             lockType = LockManager.LockType.XLock;
         }
         Debug.log(pid.toString() + ": before acquire lock\n");
-        lockMgr.acquireLock(tid, pid, lockType, DEFAUT_MAXTIMEOUT);
+        lockMgr.acquireLock(tid, pid, lockType);
         Debug.log(pid.toString() + ": acquired the lock\n");
 
         Page pg;
@@ -109,6 +293,7 @@ public class BufferPool {
                     .readPage(pid);
             pgBufferPool.put(pid, pg);
         }
+        replacer.recordAccess(pid);
         return pg;
     }
 
@@ -159,6 +344,12 @@ public class BufferPool {
         if (commit) {
             // flush all the pages into disk
             flushPages(tid);
+            stolenFrom.remove(tid);
+        } else if (stolenFrom.contains(tid)) {
+            // pages written out by evictPage must be restored from the log,
+            // and the abort logged so that recovery does not undo it again;
+            // a Transaction has already done so in LogFile.logAbort
+            Database.getLogFile().logAbort(tid);
         }
 
         // abort and commited, discard all the pages
@@ -169,7 +360,19 @@ public class BufferPool {
         if (lockList != null) {
             for (PageId pid : lockList) {
                 Page pg = pgBufferPool.getOrDefault(pid, null);
-                if (pg != null && pg.isDirty() != null) {
+                // a DbFile modifies the pages it locked exclusively in place,
+                // and only marks them dirty once the whole operation is done;
+                // on abort, pages of an operation that failed half way are
+                // restored too
+                if (pg != null && (pg.isDirty() != null
+                        || !commit && lockMgr.holdsExclusiveLock(tid, pid))) {
+                    if (unwritten.containsKey(pid)) {
+                        // the disk is behind the committed contents, which
+                        // are the before image of this transaction
+                        Page committed = pg.getBeforeImage();
+                        pgBufferPool.put(pid, committed);
+                        continue;
+                    }
                     // all dirty pages are flushed and not dirty page are still in cache
                     discardPage(pid);
                 }
@@ -205,6 +408,7 @@ public class BufferPool {
             newPg.markDirty(true, tid);
             pgBufferPool.remove(newPg.getId());
             pgBufferPool.put(newPg.getId(), newPg);
+            replacer.recordAccess(newPg.getId());
         }
     } 
 
@@ -234,6 +438,7 @@ public class BufferPool {
             newPg.markDirty(true, tid);
             pgBufferPool.remove(newPg.getId());
             pgBufferPool.put(newPg.getId(), newPg);
+            replacer.recordAccess(newPg.getId());
         }
     }
 
@@ -251,6 +456,14 @@ public class BufferPool {
         }
     }
 
+    /**
+     * @return the copy of the page cached in the pool, or null if it is not
+     *         cached; no lock is taken on the page or the pool
+     */
+    Page cachedPage(PageId pid) {
+        return pgBufferPool.get(pid);
+    }
+
     /** Remove the specific page id from the buffer pool.
         Needed by the recovery manager to ensure that the
         buffer pool doesn't keep a rolled back page in its
@@ -263,6 +476,16 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         pgBufferPool.remove(pid);
+        replacer.remove(pid);
+        unwritten.remove(pid);
+    }
+
+    /**
+     * Called by the log once the pages of tid written out by evictPage have
+     * been restored to their before images.
+     */
+    void stolenPagesUndone(TransactionId tid) {
+        stolenFrom.remove(tid);
     }
 
     /**
@@ -276,16 +499,38 @@ public class BufferPool {
             Page pg = pgBufferPool.get(pid);
             if (pg.isDirty() != null) {
                 // then write back
-            	Database.getLogFile().logWrite(pg.isDirty(), pg.getBeforeImage(), pg);
+            	Database.getLogFile().logWrite(pg.isDirty(), pg.getBeforeImageData(), pg);
                 Database.getLogFile().force();
                 DbFile tb = Database.getCatalog().getDatabaseFile(pg.getId().getTableId());
                 tb.writePage(pg);
                 pg.markDirty(false, null);
+                unwritten.remove(pid);
+            } else if (unwritten.containsKey(pid)) {
+                // committed and logged, but the log may not be forced yet
+                Database.getLogFile().force();
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pg);
+                unwritten.remove(pid);
             }
         }
     }
 
+    /**
+     * Log the after image of a page updated by a committing transaction
+     * without writing it, leaving it to the background writer (NO-FORCE).
+     */
+    private synchronized void logPage(PageId pid) throws IOException {
+        Page pg = pgBufferPool.get(pid);
+        if (pg != null && pg.isDirty() != null) {
+            long lsn = Database.getLogFile().currentLsn();
+            Database.getLogFile().logWrite(pg.isDirty(), pg.getBeforeImageData(), pg);
+            pg.markDirty(false, null);
+            unwritten.putIfAbsent(pid, lsn);
+        }
+    }
+
     /** Write all pages of the specified transaction to disk.
+        In NO-FORCE mode they are only logged; the caller forces the log
+        (LogFile.logCommit does).
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
         // some code goes here
@@ -293,10 +538,17 @@ public class BufferPool {
         ArrayList<PageId> page2flush = lockMgr.getLockList(tid);
         if (page2flush != null) {
             for (PageId p : page2flush) {
-                flushPage(p);
+                if (noForce)
+                    logPage(p);
+                else
+                    flushPage(p);
                 // use current page contents as the before-image
                 // for the next transaction that modifies this page.
-                pgBufferPool.get(p).setBeforeImage();
+                // (clean pages may already have been evicted)
+                Page pg = pgBufferPool.get(p);
+                if (pg != null) {
+                    pg.setBeforeImage();
+                }
             }
         }
     }
@@ -304,22 +556,46 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * A clean page is chosen if there is one; otherwise a dirty page is
+     * stolen from its transaction, and flushPage forces its update record
+     * to the log before writing it.
      */
     private synchronized void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        // randomly discard a page
-        for (Map.Entry<PageId, Page> entry : pgBufferPool.entrySet()) {
-            PageId pid = entry.getKey();
-            Page   p   = entry.getValue();
-            if (p.isDirty() == null) {
-                // dont need to flushpage since all page evicted are not dirty
-                // flushPage(pid);
-                discardPage(pid);
-                return;
+        PageId victim = replacer.chooseVictim(new ReplacementPolicy.EvictionFilter() {
+            public boolean canEvict(PageId pid) {
+                return !needsWrite(pid, pgBufferPool.get(pid));
             }
+        });
+        if (victim == null) {
+            // a committed page only needs writing, without stealing
+            victim = replacer.chooseVictim(new ReplacementPolicy.EvictionFilter() {
+                public boolean canEvict(PageId pid) {
+                    Page p = pgBufferPool.get(pid);
+                    return p == null || p.isDirty() == null;
+                }
+            });
+        }
+        if (victim == null) {
+            victim = replacer.chooseVictim(new ReplacementPolicy.EvictionFilter() {
+                public boolean canEvict(PageId pid) {
+                    return true;
+                }
+            });
+            if (victim == null)
+                throw new DbException("BufferPool: evictPage: no page can be evicted");
+            Page p = pgBufferPool.get(victim);
+            TransactionId dirtier = p == null ? null : p.isDirty();
+            if (dirtier != null)
+                stolenFrom.add(dirtier);
+        }
+        try {
+            flushPage(victim);
+        } catch (IOException e) {
+            throw new DbException("BufferPool: evictPage: could not write page: " + e);
         }
-        throw new DbException("BufferPool: evictPage: all pages are marked as dirty");
+        discardPage(victim);
     }
 
 }
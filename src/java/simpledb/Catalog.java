@@ -1,9 +1,6 @@
 package simpledb;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -18,16 +15,69 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Catalog {
 
-	Map<String, Map<String, Object>> catalog;
-	HashMap<Integer, String> idMap = new HashMap<Integer, String>();
-	
-	
+    /**
+     * The metadata of one table. A table loaded from a schema file opens its
+     * DbFile only when it is first used.
+     */
+    private static class Table {
+        final int id;
+        final String name;
+        final String pkeyField;
+        final TupleDesc desc;
+        private final File path; // the heap file to open, if not open yet
+        private volatile DbFile file;
+
+        Table(DbFile file, String name, String pkeyField) {
+            this.id = file.getId();
+            this.name = name;
+            this.pkeyField = pkeyField;
+            this.desc = file.getTupleDesc();
+            this.path = null;
+            this.file = file;
+        }
+
+        Table(File path, TupleDesc desc, String name, String pkeyField) {
+            this.id = HeapFile.tableId(path);
+            this.name = name;
+            this.pkeyField = pkeyField;
+            this.desc = desc;
+            this.path = path;
+        }
+
+        DbFile file() {
+            DbFile f = file;
+            if (f == null) {
+                synchronized (this) {
+                    if (file == null) {
+                        HeapFile hf = new HeapFile(path, desc);
+                        hf.persistFreeSpaceMap();
+                        file = hf;
+                    }
+                    f = file;
+                }
+            }
+            return f;
+        }
+
+        // the heap file backing the table, without opening it
+        File heapFile() {
+            if (path != null)
+                return path;
+            return file instanceof HeapFile ? ((HeapFile) file).getFile() : null;
+        }
+    }
+
+    /** First int of a binary catalog file; its 0 byte never starts a text one */
+    private static final int CATALOG_MAGIC = 0x00434154;
+
+    private final ConcurrentHashMap<Integer, Table> tablesById = new ConcurrentHashMap<Integer, Table>();
+    private final ConcurrentHashMap<String, Table> tablesByName = new ConcurrentHashMap<String, Table>();
+
     /**
      * Constructor.
      * Creates a new, empty catalog.
      */
     public Catalog() {
-    	catalog = new HashMap<String, Map<String, Object>>();
         // some code goes here
     }
 
@@ -42,15 +92,17 @@ public class Catalog {
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
-    	int id = file.getId();
-    	Map<String, Object> attr = new HashMap<String, Object>();
-    	attr.put("id", id);
-    	idMap.put(id, name);
-    	attr.put("pkeyField", pkeyField);
-    	TupleDesc desc = file.getTupleDesc();
-    	attr.put("desc", desc);
-    	attr.put("dbfile", file);
-    	catalog.put(name, attr);
+        addTable(new Table(file, name, pkeyField));
+    }
+
+    // a table replaces any table with the same name or id
+    private synchronized void addTable(Table t) {
+        Table old = tablesByName.put(t.name, t);
+        if (old != null && old.id != t.id)
+            tablesById.remove(old.id, old);
+        old = tablesById.put(t.id, t);
+        if (old != null && !old.name.equals(t.name))
+            tablesByName.remove(old.name, old);
     }
 
     public void addTable(DbFile file, String name) {
@@ -74,10 +126,18 @@ public class Catalog {
      */
     public int getTableId(String name) throws NoSuchElementException {
         // some code goes here
-    	if(catalog.containsKey(name))
-    		return (int) catalog.get(name).get("id");
-    	else
-    		throw new NoSuchElementException();
+        Table t = name != null ? tablesByName.get(name) : null;
+        if (t == null)
+            throw new NoSuchElementException();
+        return t.id;
+    }
+
+    private Table table(int tableid) throws NoSuchElementException {
+        Table t = tablesById.get(tableid);
+        if (t == null)
+            throw new NoSuchElementException("No table id: " + tableid
+                    + " exists");
+        return t;
     }
 
     /**
@@ -88,13 +148,7 @@ public class Catalog {
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // some code goes here
-    	for(String name : catalog.keySet()) {
-    		if((int) catalog.get(name).get("id") == tableid) {
-    			return ((TupleDesc) catalog.get(name).get("desc"));
-    		}
-    	}
-    	
-        throw new NoSuchElementException();
+        return table(tableid).desc;
     }
 
     /**
@@ -105,48 +159,123 @@ public class Catalog {
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // some code goes here
-    	final String name = idMap.get(tableid);
-		if (name == null) {
-			throw new NoSuchElementException("No table id: " + tableid
-			        + "exists");
-		}
-		return ((DbFile) catalog.get(name).get("dbfile"));
+        return table(tableid).file();
     }
 
     public String getPrimaryKey(int tableid) {
         // some code goes here
-    	for(String name : catalog.keySet()) {
-    		if((int) catalog.get(name).get("id") == tableid) {
-    			return ((String) catalog.get(name).get("pkeyField"));
-    		}
-    	}
-        return null;
+        Table t = tablesById.get(tableid);
+        return t != null ? t.pkeyField : null;
     }
 
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
-    	return new HashSet<Integer>(idMap.keySet()).iterator();
+        return new ArrayList<Integer>(tablesById.keySet()).iterator();
     }
 
     public String getTableName(int id) {
         // some code goes here
-    	return idMap.get(id);
+        Table t = tablesById.get(id);
+        return t != null ? t.name : null;
     }
     
     /** Delete all tables from the catalog */
-    public void clear() {
+    public synchronized void clear() {
         // some code goes here
-    	catalog.clear();
+        tablesById.clear();
+        tablesByName.clear();
+    }
+
+    /**
+     * Writes the catalog as a binary schema file, which loadSchema reads
+     * without parsing text. Only tables stored in heap files can be
+     * written; a heap file in the same directory as the schema file is
+     * written by name, so the directory can be moved.
+     * <p>
+     * The file is CATALOG_MAGIC, the int number of tables, and for each
+     * table its name, primary key and heap file (UTF strings), the int
+     * number of fields, and for each field its byte type ordinal and, if it
+     * has a name, true and the UTF name, or else false.
+     *
+     * @throws UnsupportedOperationException if a table is not stored in a
+     *         heap file, such as a BTreeFile; nothing is written then
+     */
+    public void saveSchema(String catalogFile) throws IOException {
+        File baseFolder = new File(catalogFile).getAbsoluteFile().getParentFile();
+        List<Table> tables = new ArrayList<Table>(tablesById.values());
+        for (Table t : tables) {
+            if (t.heapFile() == null)
+                throw new UnsupportedOperationException("table " + t.name + " is a "
+                        + t.file.getClass().getSimpleName() + ", not a HeapFile");
+        }
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(catalogFile)));
+        try {
+            dos.writeInt(CATALOG_MAGIC);
+            dos.writeInt(tables.size());
+            for (Table t : tables) {
+                File f = t.heapFile().getAbsoluteFile();
+                dos.writeUTF(t.name);
+                dos.writeUTF(t.pkeyField != null ? t.pkeyField : "");
+                dos.writeUTF(baseFolder.equals(f.getParentFile()) ? f.getName() : f.getPath());
+                dos.writeInt(t.desc.numFields());
+                for (int i = 0; i < t.desc.numFields(); i++) {
+                    dos.writeByte(t.desc.getFieldType(i).ordinal());
+                    String field = t.desc.getFieldName(i);
+                    dos.writeBoolean(field != null);
+                    if (field != null)
+                        dos.writeUTF(field);
+                }
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    // read a schema file written by saveSchema; no heap file is opened
+    private void loadBinarySchema(DataInputStream dis, File baseFolder) throws IOException {
+        Type[] types = Type.values();
+        int numTables = dis.readInt();
+        for (int i = 0; i < numTables; i++) {
+            String name = dis.readUTF();
+            String primaryKey = dis.readUTF();
+            File f = new File(dis.readUTF());
+            if (!f.isAbsolute())
+                f = new File(baseFolder, f.getPath());
+            int numFields = dis.readInt();
+            Type[] typeAr = new Type[numFields];
+            String[] namesAr = new String[numFields];
+            for (int j = 0; j < numFields; j++) {
+                typeAr[j] = types[dis.readByte()];
+                namesAr[j] = dis.readBoolean() ? dis.readUTF() : null;
+            }
+            addTable(new Table(f, new TupleDesc(typeAr, namesAr), name, primaryKey));
+        }
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * The file is either text, one table per line, or a binary file written by
+     * saveSchema.  The heap files of the tables are opened when first used.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
         String line = "";
         String baseFolder=new File(new File(catalogFile).getAbsolutePath()).getParent();
         try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(catalogFile)));
+            try {
+                if (dis.readInt() == CATALOG_MAGIC) {
+                    loadBinarySchema(dis, new File(baseFolder));
+                    return;
+                }
+            } catch (EOFException e) {
+                // shorter than a binary header, so text
+            } finally {
+                dis.close();
+            }
+
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
@@ -181,8 +310,7 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
-                addTable(tabHf,name,primaryKey);
+                addTable(new Table(new File(baseFolder+"/"+name + ".dat"), t, name, primaryKey));
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * ClockReplacementPolicy approximates LRU with a clock: every resident page
+ * has a frame with a reference bit that is set on access. The clock hand
+ * sweeps the frames, clearing set bits and evicting the first page whose
+ * bit is already clear, so a victim is found in amortized constant time.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private final ArrayList<PageId> frames;
+    private final ArrayList<Boolean> referenced;
+    private final HashMap<PageId, Integer> frameOf;
+    // frames whose page was removed, reused before the array grows
+    private final ArrayList<Integer> freeFrames;
+    private int hand;
+
+    /**
+     * @param numPages the expected number of resident pages
+     */
+    public ClockReplacementPolicy(int numPages) {
+        this.frames = new ArrayList<PageId>(numPages);
+        this.referenced = new ArrayList<Boolean>(numPages);
+        this.frameOf = new HashMap<PageId, Integer>(numPages);
+        this.freeFrames = new ArrayList<Integer>();
+        this.hand = 0;
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced.set(frame, true);
+            return;
+        }
+        if (!freeFrames.isEmpty()) {
+            frame = freeFrames.remove(freeFrames.size() - 1);
+            frames.set(frame, pid);
+            referenced.set(frame, true);
+        } else {
+            frame = frames.size();
+            frames.add(pid);
+            referenced.add(true);
+        }
+        frameOf.put(pid, frame);
+    }
+
+    public synchronized void remove(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames.set(frame, null);
+            referenced.set(frame, false);
+            freeFrames.add(frame);
+        }
+    }
+
+    public synchronized PageId chooseVictim(EvictionFilter filter) {
+        int n = frames.size();
+        // two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * n; i++) {
+            int frame = hand;
+            hand = (hand + 1) % n;
+            PageId pid = frames.get(frame);
+            if (pid == null)
+                continue;
+            if (referenced.get(frame)) {
+                referenced.set(frame, false);
+                continue;
+            }
+            if (filter.canEvict(pid)) {
+                remove(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -76,6 +76,21 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Narrows the selection of each batch of the child to the tuples that
+     * pass the predicate.
+     */
+    protected TupleBatch fetchNextBatch(int maxRows)
+            throws TransactionAbortedException, DbException {
+        TupleBatch b;
+        while ((b = TupleBatch.next(child, maxRows)) != null) {
+            b.select(p);
+            if (b.numSelected() > 0)
+                return b;
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -0,0 +1,176 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records how many empty slots each page of a HeapFile has, so
+ * that inserts can go straight to a page with room instead of locking every
+ * page of the file in turn.
+ * <p>
+ * The map is kept in memory, and is built from the pages of the heap file
+ * when it is first needed. The map of a table loaded from a schema file is
+ * also persisted (see persist) in a sidecar file next to the heap file,
+ * with one byte per page (counts above 255 are stored as 255), so that it
+ * need not be rebuilt each time the database starts. The persisted byte of
+ * a page is updated whenever the page is written to disk. If the sidecar is
+ * missing, does not cover every page or is older than the heap file, the
+ * map is rebuilt. Recovery invalidates the maps of the tables it rewrites
+ * (see invalidate), so they are rebuilt when next used. Heap files that
+ * are not in a schema file, such as temporary ones, get no sidecar to
+ * clean up.
+ * <p>
+ * The map is only a hint: inserters re-check the page after locking it.
+ *
+ * @see HeapFile#insertTuple
+ */
+class FreeSpaceMap {
+
+    /** Suffix of the sidecar file of a heap file */
+    static final String FSM_SUFFIX = ".fsm";
+
+    private static final int MAX_COUNT = 0xFF;
+
+    private final File file;
+    private PositionalFile pf; // of the sidecar, or null if not persisted
+    private boolean loaded;
+    // free slot count of each page, capped at MAX_COUNT
+    private byte[] free;
+    private int numPages;
+    // pages with at least one free slot
+    private final BitSet withRoom;
+
+    FreeSpaceMap(File heapFile) {
+        this.file = new File(heapFile.getPath() + FSM_SUFFIX);
+        this.loaded = false;
+        this.free = new byte[16];
+        this.numPages = 0;
+        this.withRoom = new BitSet();
+    }
+
+    /**
+     * Persist the map in its sidecar file from now on, loading it from there
+     * instead of rebuilding it if it is up to date.
+     */
+    synchronized void persist() {
+        if (pf == null) {
+            pf = new PositionalFile(file);
+            loaded = false;
+        }
+    }
+
+    /**
+     * Load the map from its sidecar file the first time it is needed,
+     * rebuilding it from hf if it is not persisted or the sidecar is missing
+     * or out of date.
+     */
+    private void ensureLoaded(HeapFile hf) throws IOException {
+        if (loaded)
+            return;
+        loaded = true;
+        int n = hf.numPages();
+        if (pf == null || file.length() != n || file.lastModified() < hf.getFile().lastModified()) {
+            rebuild(hf);
+            return;
+        }
+        byte[] data = new byte[n];
+        if (n > 0)
+            pf.read(data, 0);
+        numPages = 0;
+        withRoom.clear();
+        for (int i = 0; i < n; i++)
+            set(i, data[i] & MAX_COUNT);
+    }
+
+    /**
+     * Recompute the map from the pages of hf, and persist it. A page cached
+     * in the buffer pool is counted as it is there, since it may have been
+     * modified; other pages are read from disk. No locks are taken, as the
+     * map is only a hint.
+     */
+    synchronized void rebuild(HeapFile hf) throws IOException {
+        loaded = true;
+        int n = hf.numPages();
+        numPages = 0;
+        withRoom.clear();
+        for (int i = 0; i < n; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            Page p = Database.getBufferPool().cachedPage(pid);
+            if (p == null)
+                p = hf.readPage(pid);
+            set(i, ((HeapPage) p).getNumEmptySlots());
+        }
+        if (pf == null)
+            return;
+        // through the channel, which a deleted file would leave writing to
+        // the unlinked inode
+        if (file.length() > n)
+            pf.truncate(n);
+        if (n > 0)
+            pf.write(Arrays.copyOf(free, n), 0);
+    }
+
+    /**
+     * Forget the map, so that it is rebuilt when it is next needed, and
+     * empty the sidecar so that it is not loaded either. Until then written
+     * pages are not recorded.
+     */
+    synchronized void invalidate() throws IOException {
+        loaded = false;
+        discardSidecar();
+    }
+
+    private void discardSidecar() throws IOException {
+        if (pf != null && file.length() > 0)
+            pf.truncate(0);
+    }
+
+    private void set(int pgNo, int emptySlots) {
+        if (pgNo >= free.length)
+            free = Arrays.copyOf(free, Math.max(pgNo + 1, free.length * 2));
+        free[pgNo] = (byte) Math.min(emptySlots, MAX_COUNT);
+        withRoom.set(pgNo, emptySlots > 0);
+        numPages = Math.max(numPages, pgNo + 1);
+    }
+
+    /**
+     * @return the lowest numbered page at or after fromPgNo that has an
+     *         empty slot, or -1 if there is none
+     */
+    synchronized int pageWithRoom(HeapFile hf, int fromPgNo) throws IOException {
+        ensureLoaded(hf);
+        return withRoom.nextSetBit(fromPgNo);
+    }
+
+    /**
+     * Record the number of empty slots of a page that was modified in the
+     * buffer pool.
+     */
+    synchronized void update(HeapFile hf, int pgNo, int emptySlots) throws IOException {
+        ensureLoaded(hf);
+        set(pgNo, emptySlots);
+    }
+
+    /**
+     * Record the number of empty slots of a page that was written to disk,
+     * and persist it.
+     */
+    synchronized void pageWritten(HeapFile hf, int pgNo, int emptySlots) throws IOException {
+        if (!loaded) {
+            // not worth building the map for; it is built when next needed,
+            // and the sidecar no longer matches the heap file
+            discardSidecar();
+            return;
+        }
+        set(pgNo, emptySlots);
+        if (pf == null)
+            return;
+        if (file.length() < pgNo) {
+            // fill the entries of pages that were never written through here
+            pf.write(Arrays.copyOfRange(free, (int) file.length(), pgNo), file.length());
+        }
+        pf.write(new byte[] { free[pgNo] }, pgNo);
+    }
+}
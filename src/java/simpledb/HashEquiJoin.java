@@ -1,9 +1,26 @@
 package simpledb;
 
+import java.io.*;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join with a partitioned
+ * hybrid hash join.
+ * <p>
+ * Both inputs are split into {@link #NUM_PARTITIONS} partitions by a hash of
+ * their join field. While child1 (the build side) is read, partitions are
+ * kept in in-memory hash tables until more than the memory budget of tuples
+ * is held; then the largest partition in memory is spilled to a temporary
+ * file, and the rest of its build tuples go there too. child2 (the probe
+ * side) is then read once: tuples of in-memory partitions are joined
+ * immediately, and tuples of spilled partitions are written to the
+ * partition's probe file. Finally each spilled partition is joined by
+ * loading its build file into a hash table and reading its probe file.
+ * <p>
+ * Each input is therefore read from its child once, and spilled tuples are
+ * written and read back once. A spilled partition that is still larger than
+ * the budget (for example because of a skewed key) is loaded in chunks of
+ * the budget, reading its probe file once per chunk.
  */
 public class HashEquiJoin extends Operator {
 
@@ -14,10 +31,18 @@ public class HashEquiJoin extends Operator {
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
+    /** The default memory budget, in build side tuples */
+    public final static int MAP_SIZE = 20000;
+
+    /** The number of partitions the inputs are split into */
+    public final static int NUM_PARTITIONS = 32;
+
+    private final int memoryTuples;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -26,9 +51,22 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param memoryTuples
+     *            the number of tuples of child1 the join may keep in memory
+     *            at a time
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            int memoryTuples) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryTuples = Math.max(1, memoryTuples);
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -39,7 +77,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -49,33 +87,116 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+    // in-memory hash table of each partition, or null if it was spilled
+    transient private List<HashMap<Field, ArrayList<Tuple>>> tables;
+    transient private int[] tableSizes;
+    transient private TupleFile[] buildFiles;
+    transient private TupleFile[] probeFiles;
+    transient private int inMemory;
+
+    // the spilled partition being joined, or -1 while child2 is probed
+    transient private int spillPart;
+    transient private HashMap<Field, ArrayList<Tuple>> spillTable;
+    transient private TupleFile.Reader buildReader;
+    transient private TupleFile.Reader probeReader;
+
+    private static int partitionOf(Field f) {
+        int h = f.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % NUM_PARTITIONS;
+    }
+
+    private static void add(HashMap<Field, ArrayList<Tuple>> table, Field key, Tuple t) {
+        ArrayList<Tuple> list = table.get(key);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            table.put(key, list);
+        }
+        list.add(t);
+    }
+
+    /** Spill the largest partition still held in memory. */
+    private void spillLargest() throws IOException {
+        int victim = -1;
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            if (tables.get(i) != null && (victim < 0 || tableSizes[i] > tableSizes[victim]))
+                victim = i;
+        }
+        TupleFile f = new TupleFile("hashjoin", child1.getTupleDesc());
+        buildFiles[victim] = f;
+        for (ArrayList<Tuple> list : tables.get(victim).values()) {
+            for (Tuple t : list)
+                f.write(t);
+        }
+        tables.set(victim, null);
+        inMemory -= tableSizes[victim];
+        tableSizes[victim] = 0;
+    }
+
+    private void build() throws DbException, TransactionAbortedException {
+        tables = new ArrayList<HashMap<Field, ArrayList<Tuple>>>(NUM_PARTITIONS);
+        tableSizes = new int[NUM_PARTITIONS];
+        buildFiles = new TupleFile[NUM_PARTITIONS];
+        probeFiles = new TupleFile[NUM_PARTITIONS];
+        for (int i = 0; i < NUM_PARTITIONS; i++)
+            tables.add(new HashMap<Field, ArrayList<Tuple>>());
+        inMemory = 0;
+        spillPart = -1;
+        boolean built = false;
+        try {
+            while (child1.hasNext()) {
+                Tuple t = child1.next();
+                Field key = t.getField(pred.getField1());
+                int part = partitionOf(key);
+                if (tables.get(part) == null) {
+                    buildFiles[part].write(t);
+                    continue;
+                }
+                add(tables.get(part), key, t);
+                tableSizes[part]++;
+                if (++inMemory > memoryTuples)
+                    spillLargest();
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            for (TupleFile f : buildFiles) {
+                if (f != null)
+                    f.finish();
+            }
+            built = true;
+        } catch (IOException e) {
+            throw new DbException("could not spill hash join partition: " + e);
+        } finally {
+            if (!built)
+                releasePartitions();
         }
-        return cnt > 0;
+    }
 
+    private void releasePartitions() {
+        if (buildReader != null)
+            buildReader.close();
+        if (probeReader != null)
+            probeReader.close();
+        buildReader = null;
+        probeReader = null;
+        spillTable = null;
+        if (buildFiles != null) {
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                if (buildFiles[i] != null)
+                    buildFiles[i].delete();
+                if (probeFiles[i] != null)
+                    probeFiles[i].delete();
+            }
+        }
+        tables = null;
+        buildFiles = null;
+        probeFiles = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        build();
         super.open();
     }
 
@@ -86,12 +207,15 @@ public class HashEquiJoin extends Operator {
         this.t1=null;
         this.t2=null;
         this.listIt=null;
-        this.map.clear();
+        releasePartitions();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        releasePartitions();
+        this.listIt = null;
         child1.rewind();
         child2.rewind();
+        build();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -110,53 +234,159 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
         t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
+        return Tuple.merge(comboTD, t1, t2);
 
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+        if (!nextMatch())
+            return null;
+        return processList();
+    }
+
+    /**
+     * Writes the joined tuples straight into the columns of the batch,
+     * without making a Tuple for each.
+     */
+    protected TupleBatch fetchNextBatch(int maxRows)
+            throws TransactionAbortedException, DbException {
+        TupleBatch b = null;
+        while ((b == null || !b.isFull()) && nextMatch()) {
+            if (b == null)
+                b = new TupleBatch(comboTD, maxRows);
+            t1 = listIt.next();
+            b.addMerged(t1, t2);
         }
+        return b;
+    }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+    /**
+     * Advance to the next build tuple joining t2, which listIt returns next.
+     * If this fails, the spilled partitions are deleted.
+     *
+     * @return false if the join is finished
+     */
+    private boolean nextMatch() throws TransactionAbortedException, DbException {
+        boolean advanced = false;
+        try {
+            boolean more = advance();
+            advanced = true;
+            return more;
+        } finally {
+            if (!advanced)
+                releasePartitions();
+        }
+    }
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+    private boolean advance() throws TransactionAbortedException, DbException {
+        try {
+            while (true) {
+                if (listIt != null && listIt.hasNext())
+                    return true;
+                listIt = null;
 
-            return processList();
+                if (spillPart < 0) {
+                    // probe the in-memory partitions with child2
+                    if (child2.hasNext()) {
+                        t2 = child2.next();
+                        Field key = t2.getField(pred.getField2());
+                        int part = partitionOf(key);
+                        if (tables.get(part) != null) {
+                            ArrayList<Tuple> l = tables.get(part).get(key);
+                            if (l != null)
+                                listIt = l.iterator();
+                        } else {
+                            if (probeFiles[part] == null)
+                                probeFiles[part] = new TupleFile("hashjoin", child2.getTupleDesc());
+                            probeFiles[part].write(t2);
+                        }
+                        continue;
+                    }
+                    // the in-memory partitions are done
+                    Collections.fill(tables, null);
+                    if (!nextSpilledPartition(0))
+                        return false;
+                    continue;
+                }
 
+                if (spillPart >= NUM_PARTITIONS)
+                    return false;
+                t2 = probeReader.next();
+                if (t2 != null) {
+                    ArrayList<Tuple> l = spillTable.get(t2.getField(pred.getField2()));
+                    if (l != null)
+                        listIt = l.iterator();
+                    continue;
+                }
+                probeReader.close();
+                probeReader = null;
+                if (!loadChunk()) {
+                    // this partition is done
+                    buildFiles[spillPart].delete();
+                    probeFiles[spillPart].delete();
+                    buildFiles[spillPart] = null;
+                    probeFiles[spillPart] = null;
+                    if (!nextSpilledPartition(spillPart + 1))
+                        return false;
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not spill hash join partition: " + e);
         }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    /**
+     * Start joining the first spilled partition numbered from or above
+     * that has tuples on both sides.
+     *
+     * @return false if there is none
+     */
+    private boolean nextSpilledPartition(int from) throws IOException, DbException {
+        for (int part = from; part < NUM_PARTITIONS; part++) {
+            if (buildFiles[part] == null)
+                continue;
+            if (probeFiles[part] == null || buildFiles[part].size() == 0) {
+                buildFiles[part].delete();
+                buildFiles[part] = null;
+                continue;
+            }
+            spillPart = part;
+            buildReader = buildFiles[part].reader();
+            if (loadChunk())
+                return true;
         }
+        spillPart = NUM_PARTITIONS;
+        return false;
+    }
 
-        return null;
+    /**
+     * Load the next chunk of the build file of the current spilled partition
+     * into memory, and start reading its probe file.
+     *
+     * @return false if the build file is exhausted
+     */
+    private boolean loadChunk() throws IOException, DbException {
+        spillTable = new HashMap<Field, ArrayList<Tuple>>();
+        int n = 0;
+        Tuple t;
+        while (n < memoryTuples && (t = buildReader.next()) != null) {
+            add(spillTable, t.getField(pred.getField1()), t);
+            n++;
+        }
+        if (n == 0) {
+            buildReader.close();
+            buildReader = null;
+            spillTable = null;
+            return false;
+        }
+        probeReader = probeFiles[spillPart].reader();
+        return true;
     }
 
     @Override
@@ -169,5 +399,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
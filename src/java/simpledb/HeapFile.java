@@ -19,7 +19,8 @@ public class HeapFile implements DbFile {
 	public File file;
 	private TupleDesc tDesc;
 	//private HashMap<Integer, HeapPage> pMap;
-	private RandomAccessFile raf;
+	private final PositionalFile pf;
+	private final FreeSpaceMap fsm;
 
 
     /**
@@ -34,11 +35,8 @@ public class HeapFile implements DbFile {
         // some code goes here
     	this.file = f;
     	this.tDesc = td;
-    	try {
-    		raf = new RandomAccessFile(f, "rw");
-    	}catch(FileNotFoundException e) {
-    		e.printStackTrace();
-    	}
+    	this.pf = new PositionalFile(f);
+    	this.fsm = new FreeSpaceMap(f);
     	
     }
 
@@ -64,7 +62,14 @@ public class HeapFile implements DbFile {
     public int getId() {
         // some code goes here
         //throw new UnsupportedOperationException("implement this");
-    	return file.getAbsolutePath().hashCode();
+    	return tableId(file);
+    }
+
+    /**
+     * @return the id of the heap file backed by f, without opening it
+     */
+    static int tableId(File f) {
+    	return f.getAbsolutePath().hashCode();
     }
 
     /**
@@ -81,41 +86,56 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-    	int offset = pid.getPageNumber() * BufferPool.getPageSize();
+    	long offset = (long) pid.getPageNumber() * BufferPool.getPageSize();
     	byte[] pData = new byte[BufferPool.getPageSize()];
     	//Page p;
     	try {
-    		raf.seek(offset);
-    		raf.read(pData, 0, BufferPool.getPageSize());
+    		// a page past the end of the file reads as an empty page
+    		pf.read(pData, offset);
     		return new HeapPage((HeapPageId) pid, pData);
-    		
-    	}catch(IOException e) {
-    		e.printStackTrace();
+    	} catch (IOException e) {
+    		// such as a page in a layout this version does not read
+    		throw new IllegalArgumentException("Unable to read page "
+    				+ pid.getPageNumber() + " of " + file.getName() + ": " + e.getMessage(), e);
     	}
-		
-    	return null;
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-    	
-    		int offset = page.getId().getPageNumber() * BufferPool.getPageSize();
-    		RandomAccessFile rf = new RandomAccessFile(file, "rw");
-    		rf.seek(offset);
-        rf.write(page.getPageData());
-        rf.close();
-    	
-    	/*
-    	int offset = page.getId().getPageNumber() * BufferPool.getPageSize();
-    	
-    	try {
-    		raf.write(page.getPageData(), offset, BufferPool.getPageSize());
-    	}
-    	catch(Exception e) {
-    		throw new IOException(e.getMessage());
-    	}*/
+    	long offset = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+    	pf.write(page.getPageData(), offset);
+    	fsm.pageWritten(this, page.getId().getPageNumber(),
+    			((HeapPage) page).getNumEmptySlots());
+    }
+
+    /**
+     * Append an empty page to the end of the file.
+     *
+     * @return the number of the new page
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+    	byte[] bytes = HeapPage.createEmptyPageData();
+    	int pgNo = (int) (pf.append(bytes) / BufferPool.getPageSize());
+    	fsm.pageWritten(this, pgNo, new HeapPage(new HeapPageId(getId(), pgNo), bytes).getNumEmptySlots());
+    	return pgNo;
+    }
+
+    /**
+     * Mark the free space map of this file out of date, for example when
+     * recovery is about to rewrite its pages; it is rebuilt when next used.
+     */
+    void invalidateFreeSpaceMap() throws IOException {
+    	fsm.invalidate();
+    }
+
+    /**
+     * Persist the free space map of this file in a sidecar file, as is done
+     * for the tables of a schema file.
+     */
+    void persistFreeSpaceMap() {
+    	fsm.persist();
     }
 
     /**
@@ -131,50 +151,29 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
     	
         // some code goes here
-    	    ArrayList<Page> pList = new ArrayList<Page>();
-    	    int pgNo;
-    		for(pgNo = 0; pgNo < this.numPages(); pgNo++) {
-    			HeapPageId pid = new HeapPageId(this.getId(), pgNo);
-    			HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-    			if(p.getNumEmptySlots() > 0) {
-    				p.insertTuple(t);
-    				pList.add(p);
-    				return pList;
-    			}
-
-    		}
+    	// the free space map names candidate pages, so that only pages with
+    	// room are locked; a page is re-checked once locked, since the map
+    	// may be stale
+    	ArrayList<Page> pList = new ArrayList<Page>();
+    	int pgNo = 0;
+    	while (true) {
+    		pgNo = fsm.pageWithRoom(this, pgNo);
+    		if (pgNo < 0)
+    			pgNo = appendEmptyPage();
     		HeapPageId pid = new HeapPageId(this.getId(), pgNo);
-    		byte[] bytes = new byte[BufferPool.getPageSize()];
-    		HeapPage p = new HeapPage(pid, bytes);
-
-    		p.insertTuple(t);
-    		this.writePage(p);
-    		pList.add(p);
-    		return pList;/*
-    	int pageNo;
-    	for(pageNo = 0; pageNo < this.numPages(); pageNo++) {
-    		HeapPageId pid = new HeapPageId(getId(), pageNo);
-    		HeapPage p = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-    		if(p.getNumEmptySlots() > 0){
-        		break;
-        	}
+    		boolean held = Database.getBufferPool().holdsLock(tid, pid);
+    		HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+    		if (p.getNumEmptySlots() > 0) {
+    			p.insertTuple(t);
+    			fsm.update(this, pgNo, p.getNumEmptySlots());
+    			pList.add(p);
+    			return pList;
+    		}
+    		fsm.update(this, pgNo, 0);
+    		if (!held)
+    			Database.getBufferPool().releasePage(tid, pid);
+    		pgNo++;
     	}
-    if(pageNo == this.numPages()) {
-    	HeapPageId 	pid = new HeapPageId(getId(), pageNo);
-    	byte[] bytes = new byte[BufferPool.getPageSize()];
-		HeapPage hp = new HeapPage(pid, bytes);
-		writePage(hp);
-    }
-    HeapPageId 	pid = new HeapPageId(getId(), pageNo);
-		
-		
-		
-    HeapPage p = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-    	
-    	p.insertTuple(t);
-    	ArrayList<Page> ls = new ArrayList<Page>();
-    	ls.add(p);
-        return ls;*/
         // not necessary for lab1
     }
 
@@ -187,6 +186,11 @@ public class HeapFile implements DbFile {
     		HeapPageId pid = (HeapPageId) rid.getPageId();
     		HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
     		p.deleteTuple(t);
+    		try {
+    			fsm.update(this, pid.getPageNumber(), p.getNumEmptySlots());
+    		} catch (IOException e) {
+    			throw new DbException("could not update the free space map: " + e);
+    		}
     		pList.add(p);
         return pList;
         // not necessary for lab1
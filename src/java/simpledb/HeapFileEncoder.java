@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -75,6 +76,9 @@ public class HeapFileEncoder {
     * ...<br>
     * where each row represents a tuple.<br>
     * <p>
+    * Tables with string fields are written as pages of variable-length
+    * records (see SlottedPage), filled as long as the next record fits.
+    * <p>
     * The format of the output file will be as specified in HeapPage and
     * HeapFile.
     *
@@ -91,6 +95,12 @@ public class HeapFileEncoder {
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
 
+      TupleDesc td = new TupleDesc(Arrays.copyOf(typeAr, numFields));
+      if (SlottedPage.appliesTo(td)) {
+          convertSlotted(inFile, outFile, npagebytes, td, fieldSeparator);
+          return;
+      }
+
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
@@ -223,4 +233,52 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  // write the tuples of inFile as SlottedPage records, for tables with
+  // string fields
+  private static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 TupleDesc td, char fieldSeparator) throws IOException {
+    if (npagebytes > SlottedPage.MAX_PAGE_SIZE)
+        throw new IOException("pages of " + npagebytes
+                + " bytes are too large for variable-length tuples");
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    FileOutputStream os = new FileOutputStream(outFile);
+    byte[] page = new byte[npagebytes];
+    boolean empty = true;
+    int npages = 0;
+
+    String line;
+    while ((line = br.readLine()) != null) {
+        if (line.trim().length() == 0)
+            continue;
+        String[] vals = line.split(java.util.regex.Pattern.quote(String.valueOf(fieldSeparator)), -1);
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                String s = i < vals.length ? vals[i].trim() : "";
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    t.setField(i, new IntField(Integer.parseInt(s)));
+                else
+                    t.setField(i, new StringField(s, Type.STRING_LEN));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println ("BAD LINE : " + line);
+            continue;
+        }
+
+        byte[] rec = SlottedPage.encode(t, td);
+        if (SlottedPage.contiguousSpace(page) < SlottedPage.spaceNeeded(page, rec.length)) {
+            os.write(page);
+            npages++;
+            page = new byte[npagebytes];
+        }
+        SlottedPage.insert(page, rec, rec.length);
+        empty = false;
+    }
+    // flush the last page, or an empty page if the file is empty
+    if (!empty || npages == 0)
+        os.write(page);
+    br.close();
+    os.close();
+  }
 }
@@ -15,14 +15,25 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
+    final Tuple tuples[]; // the tuple of each slot, once it is accessed
     final int numSlots;
+    private final int headerSize;
+    private final int tupleSize;
+    private final int[] fieldOffsets; // of each field within a tuple
+    // true if tuples are variable-length records of a SlottedPage
+    private final boolean slotted;
+    private final int maxRecordSize;
+    // the page bytes, which hold the header and the tuples; data may be
+    // the caller's array, or the before image, until it is copied on the
+    // first modification
+    private byte[] data;
+    private boolean dataShared = true;
     private TransactionId tid;
     boolean dirty = false;
 
+    // the before image, or null while it is still data
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock=new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -36,6 +47,11 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * Tables with string fields use the layout of {@link SlottedPage}
+     * instead, which stores each string at its real length.
+     * <p>
+     * The page keeps the bytes as they are, without copying them until it
+     * is modified, and decodes a field of a tuple only when it is read.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -43,25 +59,24 @@ public class HeapPage implements Page {
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
-        this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        this.slotted = SlottedPage.appliesTo(td);
+        this.maxRecordSize = SlottedPage.maxRecordSize(td);
+        this.numSlots = slotted ? SlottedPage.maxSlots(td, BufferPool.getPageSize()) : getNumTuples();
+        this.headerSize = slotted ? SlottedPage.HEADER_SIZE : getHeaderSize();
+        this.tupleSize = td.getSize();
+        if (data.length < BufferPool.getPageSize())
+            throw new EOFException("short heap page: " + data.length + " bytes");
+        if (slotted && BufferPool.getPageSize() > SlottedPage.MAX_PAGE_SIZE)
+            throw new IOException("pages of " + BufferPool.getPageSize()
+                    + " bytes are too large for variable-length tuples");
+        if (slotted)
+            SlottedPage.check(data);
+        this.data = data;
+
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -90,12 +105,7 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid,getBeforeImageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -104,10 +114,22 @@ public class HeapPage implements Page {
         return null;
     }
     
+    public byte[] getBeforeImageData() {
+        synchronized(oldDataLock)
+        {
+        return oldData != null ? oldData : data;
+        }
+    }
+
+    /** The contents of the page become its before image.  Nothing is
+        copied: the next modification copies the page bytes instead of
+        changing them, and the unchanged bytes become the before image.
+    */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        dataShared = true;
         }
     }
 
@@ -121,39 +143,96 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * A tuple of this page that decodes each field from the page bytes
+     * when it is first read.  The bytes of its slot do not change while
+     * the tuple is on the page; before they do, the page decodes the rest
+     * of the tuple (see detach).
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private static final class PageTuple extends Tuple {
+        private static final long serialVersionUID = 1L;
+        private volatile byte[] data; // null once every field is decoded
+        private final int offset;
+        private final int[] fieldOffsets;
+        private final boolean slotted; // a SlottedPage record
+
+        PageTuple(TupleDesc td, byte[] data, int offset, int[] fieldOffsets, boolean slotted) {
+            super(td);
+            this.data = data;
+            this.offset = offset;
+            this.fieldOffsets = fieldOffsets;
+            this.slotted = slotted;
+        }
+
+        @Override
+        public Field getField(int i) {
+            byte[] d = data;
+            Field f = super.getField(i);
+            if (f == null && d != null) {
+                Type type = getTupleDesc().getFieldType(i);
+                f = slotted ? SlottedPage.readField(type, d, offset + fieldOffsets[i])
+                        : type.parse(d, offset + fieldOffsets[i]);
+                super.setField(i, f);
             }
-            return null;
+            return f;
         }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+        // an int not read yet comes from the page bytes, without decoding
+        // an IntField
+        @Override
+        public int getInt(int i) {
+            byte[] d = data;
+            Field f = super.getField(i);
+            if (f == null && d != null)
+                return Type.readInt(d, offset + fieldOffsets[i]);
+            return ((IntField) f).getValue();
+        }
+
+        @Override
+        public Iterator<Field> fields() {
+            detach();
+            return super.fields();
+        }
+
+        // decode the fields not read yet, so the page bytes are not needed
+        void detach() {
+            if (data != null) {
+                for (int i = 0; i < fieldOffsets.length; i++)
+                    getField(i);
+                data = null;
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
+    }
 
+    // the tuple in used slot i
+    private Tuple tupleAt(int i) {
+        Tuple t = tuples[i];
+        if (t == null) {
+            if (slotted) {
+                int off = SlottedPage.recordOffset(data, i);
+                t = new PageTuple(td, data, off, SlottedPage.fieldOffsets(td, data, off), true);
+            } else {
+                t = new PageTuple(td, data, headerSize + i * tupleSize, fieldOffsets, false);
+            }
+            t.setRecordId(new RecordId(pid, i));
+            tuples[i] = t;
+        }
         return t;
     }
 
+    // the page bytes, to be modified
+    private byte[] writableData() {
+        if (dataShared) {
+            synchronized(oldDataLock)
+            {
+                if (oldData == null)
+                    oldData = data;
+                data = data.clone();
+                dataShared = false;
+            }
+        }
+        return data;
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -166,64 +245,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data.clone();
     }
 
     /**
@@ -250,14 +272,21 @@ public class HeapPage implements Page {
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-    		for(int i = 0; i < this.numSlots; i++) {
-    			if(this.isSlotUsed(i) && tuples[i] != null && tuples[i].getRecordId().equals(t.getRecordId())) {
-    				this.markSlotUsed(i, false);
-    				tuples[i].setRecordId(null);
-    				return;
-    			}
+    		RecordId rid = t.getRecordId();
+    		if (rid == null || !pid.equals(rid.getPageId()) || !isSlotUsed(rid.getTupleNumber()))
+    			throw new DbException("No such tuple!");
+    		int i = rid.getTupleNumber();
+    		Tuple old = tuples[i];
+    		if (old instanceof PageTuple)
+    			((PageTuple) old).detach();
+    		if (slotted) {
+    			SlottedPage.delete(writableData(), i);
+    		} else {
+    			this.markSlotUsed(i, false);
+    			Arrays.fill(writableData(), headerSize + i * tupleSize, headerSize + (i + 1) * tupleSize, (byte) 0);
     		}
-    		throw new DbException("No such tuple!");
+    		if (old != null)
+    			old.setRecordId(null);
     }
 
     /**
@@ -278,8 +307,13 @@ public class HeapPage implements Page {
     			throw new DbException("tupledesc mismatch");
     		}
     		
+    		if (slotted) {
+    			insertRecord(t);
+    			return;
+    		}
     		for(int i = 0; i < this.numSlots; i++) {
     			if(this.isSlotUsed(i) == false) {
+    				writeTuple(t, i);
     				this.markSlotUsed(i, true);
     				//System.out.println(i);
     				tuples[i] = t;
@@ -290,6 +324,40 @@ public class HeapPage implements Page {
     		throw new DbException("Cannot insert this tuple!");
     }
 
+    // store t as a SlottedPage record, compacting the page if the free
+    // space is fragmented; compacting makes a new array, so the tuples
+    // of the page keep reading the bytes they were created from
+    private void insertRecord(Tuple t) throws DbException {
+        byte[] rec = SlottedPage.encode(t, td);
+        byte[] d = writableData();
+        int need = SlottedPage.spaceNeeded(d, rec.length);
+        if (SlottedPage.freeSpace(d) < need)
+            throw new DbException("this page is full");
+        if (SlottedPage.contiguousSpace(d) < need) {
+            d = SlottedPage.compact(d);
+            data = d;
+        }
+        int i = SlottedPage.insert(d, rec, rec.length);
+        tuples[i] = t;
+        t.setRecordId(new RecordId(this.pid, i));
+    }
+
+    // serialize the fields of t into slot i
+    private void writeTuple(Tuple t, int i) throws DbException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("cannot serialize tuple: " + e.getMessage());
+        }
+        if (baos.size() != tupleSize)
+            throw new DbException("tuple of " + baos.size() + " bytes in a slot of " + tupleSize);
+        System.arraycopy(baos.toByteArray(), 0, writableData(), headerSize + i * tupleSize, tupleSize);
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -323,32 +391,29 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int count=0;
-        for(int i=0;i<header.length;i++){
-        	int n=header[i];
-        	for(int j=0;j<8;j++){
-        		if((n & 1)==0)
-        			count++;
-        		n = n>>1;
-        	}
+        if (slotted) {
+            // a slot is free if a tuple of the largest size fits
+            int free = SlottedPage.freeSpace(data) / (maxRecordSize + SlottedPage.SLOT_SIZE);
+            return Math.min(free, numSlots - SlottedPage.numRecords(data));
         }
-        
-        int res=count-((header.length*8)-tuples.length);
-        return res;
+        int used=0;
+        for(int i=0;i<headerSize;i++)
+        	used += Integer.bitCount(data[i] & 0xff);
+        return numSlots-used;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
-    	if(i>=tuples.length)
+    	if(i<0 || i>=numSlots)
     		return false;
+    	if (slotted)
+    		return SlottedPage.isUsed(data, i);
         // some code goes here
     	int offset = i%8;
     	int loca = (i/8);
-    	//int n = header[loca];
-    	if(loca>=header.length) return false;
-    	return ((header[loca]>>>offset)&1)==1;
+    	return ((data[loca]>>>offset)&1)==1;
     }
 
     /**
@@ -359,6 +424,7 @@ public class HeapPage implements Page {
         // not necessary for lab1
     		int offset = i%8;
     		int loca = i/8;
+    		byte[] header = writableData();
     		if(value)
     			
     			header[loca] = (byte) (header[loca] | (1 <<  offset));
@@ -370,15 +436,49 @@ public class HeapPage implements Page {
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * The tuples are those of the slots used when the iterator is created,
+     * and their fields are decoded as they are read.
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-    	List<Tuple> v = new ArrayList<>();
-    	for(int i=0;i<tuples.length;i++) {
-    		if(isSlotUsed(i))
-    			v.add(tuples[i]);
+    	final BitSet used = new BitSet(numSlots);
+    	for (int i = 0; i < numSlots; i++) {
+    		if (isSlotUsed(i))
+    			used.set(i);
     	}
-        return v.iterator();
+    	return new Iterator<Tuple>() {
+    		private int slot = -1;
+    		private Tuple next = advance();
+
+    		private Tuple advance() {
+    			while (++slot < numSlots) {
+    				if (!used.get(slot))
+    					continue;
+    				Tuple t = tuples[slot];
+    				if (t == null && isSlotUsed(slot))
+    					t = tupleAt(slot);
+    				if (t != null)
+    					return t;
+    			}
+    			return null;
+    		}
+
+    		public boolean hasNext() {
+    			return next != null;
+    		}
+
+    		public Tuple next() {
+    			if (next == null)
+    				throw new NoSuchElementException();
+    			Tuple t = next;
+    			next = advance();
+    			return t;
+    		}
+
+    		public void remove() {
+    			throw new UnsupportedOperationException();
+    		}
+    	};
     }
 
 }
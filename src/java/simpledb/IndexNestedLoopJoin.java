@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins each tuple of the outer child with the tuples of
+ * a BTreeFile found by a search of its index, instead of scanning the inner
+ * table once per outer tuple. The join field of the inner table must be the
+ * key field of the BTreeFile.
+ * <p>
+ * The inner side is given as the plan that would otherwise scan the table:
+ * a SeqScan over the BTreeFile, possibly under Filters, whose predicates are
+ * applied to the tuples found through the index.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+    private final TransactionId tid;
+    private final BTreeFile file;
+    // predicates of the filters over the inner scan
+    private final ArrayList<Predicate> innerFilters;
+
+    transient private Tuple t1 = null;
+    transient private DbFileIterator probe = null;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            The inner relation: a SeqScan over a BTreeFile keyed on
+     *            field p.getField2(), possibly under Filters
+     * @throws IllegalArgumentException
+     *             if child2 cannot be read through an index
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.innerFilters = new ArrayList<Predicate>();
+        OpIterator it = child2;
+        while (it instanceof Filter) {
+            innerFilters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        if (!canProbe(p, child2))
+            throw new IllegalArgumentException("inner side has no index on the join field");
+        SeqScan scan = (SeqScan) it;
+        this.tid = scan.getTransactionId();
+        this.file = (BTreeFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if the tuples of plan joining the outer tuples under p
+     *         can be found through an index, i.e. plan is a SeqScan (under
+     *         any number of Filters) over a BTreeFile keyed on
+     *         p.getField2(), and p is not an inequality
+     */
+    public static boolean canProbe(JoinPredicate p, OpIterator plan) {
+        if (p.getOperator() == Predicate.Op.NOT_EQUALS
+                || p.getOperator() == Predicate.Op.LIKE)
+            return false;
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        if (!(plan instanceof SeqScan))
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == p.getField2();
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return the operator op' such that (inner op' outer) holds exactly
+     *         when (outer op inner) does
+     */
+    private static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (probe != null)
+            probe.close();
+        probe = null;
+        t1 = null;
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (probe != null)
+            probe.close();
+        probe = null;
+        t1 = null;
+        child1.rewind();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As with the other joins, the result is the concatenation
+     * of the joining tuples from the left and right relation.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (probe == null) {
+                if (!child1.hasNext())
+                    return null;
+                t1 = child1.next();
+                IndexPredicate ipred = new IndexPredicate(reverse(pred.getOperator()),
+                        t1.getField(pred.getField1()));
+                probe = file.indexIterator(tid, ipred);
+                probe.open();
+            }
+            while (probe.hasNext()) {
+                Tuple t2 = probe.next();
+                if (!pred.filter(t1, t2) || !passesFilters(t2))
+                    continue;
+                return Tuple.merge(comboTD, t1, t2);
+            }
+            probe.close();
+            probe = null;
+        }
+    }
+
+    private boolean passesFilters(Tuple t) {
+        for (Predicate p : innerFilters) {
+            if (!p.filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
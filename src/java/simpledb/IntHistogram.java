@@ -1,5 +1,9 @@
 package simpledb;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /** A class to represent a fixed-width histogram over a single integer-based field.
  */
 public class IntHistogram {
@@ -140,6 +144,33 @@ public class IntHistogram {
         return 1.0;
     }
     
+    /**
+     * Write this histogram to the specified stream, so that it can later be
+     * rebuilt by {@link #readFrom} without rescanning the underlying table.
+     */
+    void writeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(buckets);
+        dos.writeInt(min);
+        dos.writeInt(max);
+        dos.writeInt(ntups);
+        for (int i = 0; i < bucket.length; i++)
+            dos.writeInt(bucket[i]);
+    }
+
+    /**
+     * Read a histogram previously written with {@link #writeTo}.
+     */
+    static IntHistogram readFrom(DataInputStream dis) throws IOException {
+        int buckets = dis.readInt();
+        int min = dis.readInt();
+        int max = dis.readInt();
+        IntHistogram h = new IntHistogram(buckets, min, max);
+        h.ntups = dis.readInt();
+        for (int i = 0; i < buckets; i++)
+            h.bucket[i] = dis.readInt();
+        return h;
+    }
+
     /**
      * @return A string describing this histogram, for debugging purposes
      */
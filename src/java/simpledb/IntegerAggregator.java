@@ -31,8 +31,8 @@ public class IntegerAggregator implements Aggregator {
     private int afield;
     private Op what;
     
-    private Map<Field,Integer> mapV;
-    private Map<Field,Integer> mapC;
+    // group value -> {aggregate value, count}, updated in place
+    private Map<Field,int[]> groups;
     
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
@@ -42,8 +42,7 @@ public class IntegerAggregator implements Aggregator {
     	this.afield=afield;
     	this.what=what;
     	
-    	this.mapC=new HashMap<>();
-    	this.mapV=new HashMap<>();
+    	this.groups=new HashMap<>();
     }
 
     /**
@@ -59,31 +58,35 @@ public class IntegerAggregator implements Aggregator {
     	if(gbfield!=-1)
     	    groupValue=tup.getField(gbfield);
     	else groupValue=null;
-    	Field aValue=tup.getField(afield);
-    	
-    	if(mapV.containsKey(groupValue)){
-    		mapC.put(groupValue, mapC.get(groupValue)+1);
-    		mapV.put(groupValue,calculate(groupValue,mapV.get(groupValue),((IntField)aValue).getValue(),mapC.get(groupValue)));
-    	}
-    	else{
-    		mapC.put(groupValue, 1);
-    		mapV.put(groupValue,((IntField)aValue).getValue());
+    	merge(groupValue, tup.getInt(afield));
+    }
+
+    /**
+     * Merge the selected rows of a batch, reading the aggregate field from
+     * its int column.
+     */
+    public void mergeBatchIntoGroups(TupleBatch batch) {
+    	for(int k=0;k<batch.numSelected();k++){
+    		int row=batch.selected(k);
+    		Field groupValue=gbfield!=-1 ? batch.getField(gbfield, row) : null;
+    		merge(groupValue, batch.getInt(afield, row));
     	}
     }
-    
-    
-    public Integer calculate(Field groupValue, Integer pre, Integer cur, Integer count){
-    	
-    	switch(this.what){
-    	   
-    	case MIN: return Math.min(pre, cur);
-    	case MAX: return Math.max(pre, cur);
-    	case SUM: return pre+cur;
-    	case COUNT: return mapC.get(groupValue);
-    	case AVG: return pre+cur;
-    	
+
+    private void merge(Field groupValue, int aValue) {
+    	int[] g=groups.get(groupValue);
+    	if(g!=null){
+    		g[1]++;
+    		switch(this.what){
+    		case MIN: g[0]=Math.min(g[0], aValue);break;
+    		case MAX: g[0]=Math.max(g[0], aValue);break;
+    		case SUM: case AVG: g[0]+=aValue;break;
+    		default: break;
+    		}
+    	}
+    	else{
+    		groups.put(groupValue, new int[] {aValue, 1});
     	}
-    	return null;
     }
     
 
@@ -106,24 +109,26 @@ public class IntegerAggregator implements Aggregator {
         	td=new TupleDesc(new Type[] {gbfieldtype, Type.INT_TYPE});
     	
         if(gbfield==-1){
-        	for(Field key: mapV.keySet()){
+        	for(Map.Entry<Field,int[]> e: groups.entrySet()){
+        		Field key=e.getKey();
         		Tuple t=new Tuple(td);
-        		int value=mapV.get(key);
+        		int value=e.getValue()[0];
         		switch(what){
-        		case AVG: value=value/mapC.get(key);break;
-        		case COUNT: value=mapC.get(key);break;
+        		case AVG: value=value/e.getValue()[1];break;
+        		case COUNT: value=e.getValue()[1];break;
         		}
         		t.setField(0, new IntField(value));
         		list.add(t);
         	}
         }
         else{
-        	for(Field key: mapV.keySet()){
+        	for(Map.Entry<Field,int[]> e: groups.entrySet()){
+        		Field key=e.getKey();
         		Tuple t=new Tuple(td);
-        		int value=mapV.get(key);
+        		int value=e.getValue()[0];
         		switch(what){
-        		case AVG: value=value/mapC.get(key);break;
-        		case COUNT: value=mapC.get(key);break;
+        		case AVG: value=value/e.getValue()[1];break;
+        		case COUNT: value=e.getValue()[1];break;
         		}
         		t.setField(0, key);
         		t.setField(1, new IntField(value));
@@ -4,11 +4,22 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loop join: the outer child is read a block of
+ * tuples at a time, and the inner child is scanned once per block rather
+ * than once per outer tuple. An inner child that fits in the inner cache is
+ * kept in memory after its first scan and never rewound.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** The default size of a block of outer tuples, in pages */
+    public static final int DEFAULT_BLOCK_PAGES = 32;
+
+    /** The largest inner child kept in memory, in pages */
+    public static final int INNER_CACHE_PAGES = 32;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -24,13 +35,43 @@ public class Join extends Operator {
     private OpIterator child1;
     private OpIterator child2;
     private OpIterator[] children;
-    private Tuple t1;
-    
+    private final int blockPages;
+
+    // the current block of outer tuples, and the next one to try against t2
+    private transient ArrayList<Tuple> block;
+    private transient int blockPos;
+    // the current inner tuple
+    private transient Tuple t2;
+    // the inner tuples read so far, while the inner child still fits in the
+    // cache; null once it does not
+    private transient ArrayList<Tuple> innerCache;
+    // whether innerCache holds the whole inner child
+    private transient boolean innerCached;
+    private transient int innerPos;
+    private transient TupleDesc comboTD;
+
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param blockPages
+     *            the number of pages worth of outer tuples joined per scan
+     *            of the inner child
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
         // some code goes here
     	this.p=p;
     	this.child1=child1;
     	this.child2=child2;
+    	this.blockPages=Math.max(1, blockPages);
+    }
+
+    /** @return the number of tuples of td that fit in the given number of pages */
+    static int tuplesPerPages(TupleDesc td, int pages) {
+        return Math.max(1, (int) ((long) pages * BufferPool.getPageSize() / td.getSize()));
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -72,20 +113,73 @@ public class Join extends Operator {
     	super.open();
         child1.open();
         child2.open();
-        t1=child1.next();
+        block = new ArrayList<Tuple>();
+        innerCache = new ArrayList<Tuple>();
+        innerCached = false;
+        comboTD = getTupleDesc();
+        fillBlock();
     }
 
     public void close() {
         child1.close();
         child2.close();
-        t1=null;
+        block = null;
+        innerCache = null;
+        t2 = null;
         super.close();
 
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        close();
-        open();
+        child1.rewind();
+        restartInner();
+        fillBlock();
+    }
+
+    /**
+     * Read the next block of outer tuples.
+     *
+     * @return false if the outer child is exhausted
+     */
+    private boolean fillBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        blockPos = 0;
+        t2 = null;
+        int blockTuples = tuplesPerPages(child1.getTupleDesc(), blockPages);
+        while (block.size() < blockTuples && child1.hasNext())
+            block.add(child1.next());
+        return !block.isEmpty();
+    }
+
+    /** Start a new pass over the inner child. */
+    private void restartInner() throws DbException, TransactionAbortedException {
+        t2 = null;
+        if (innerCached) {
+            innerPos = 0;
+        } else {
+            innerCache = null;
+            child2.rewind();
+        }
+    }
+
+    /** @return the next inner tuple of this pass, or null at its end */
+    private Tuple nextInner() throws DbException, TransactionAbortedException {
+        if (innerCached)
+            return innerPos < innerCache.size() ? innerCache.get(innerPos++) : null;
+        if (!child2.hasNext()) {
+            if (innerCache != null) {
+                innerCached = true;
+                innerPos = innerCache.size();
+            }
+            return null;
+        }
+        Tuple t = child2.next();
+        if (innerCache != null) {
+            innerCache.add(t);
+            if (innerCache.size() > tuplesPerPages(child2.getTupleDesc(), INNER_CACHE_PAGES))
+                innerCache = null;
+        }
+        return t;
     }
 
     /**
@@ -108,61 +202,26 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-//    	while(true){
-//    		
-//        	while(child1.hasNext()){
-//        		Tuple t1=child1.next();
-//        		while(child2.hasNext()){
-//        			Tuple t2=child2.next();
-//        			if(!p.filter(t1, t2)) continue;
-//        			TupleDesc td=getTupleDesc();
-//        			Tuple newTuple=new Tuple(td);
-//        			
-//        			for(int i=0;i<t1.getTupleDesc().numFields();i++){
-//        				newTuple.setField(i,t1.getField(i));
-//        			}
-//        			
-//        			for(int i=0;i<t2.getTupleDesc().numFields();i++){
-//        				newTuple.setField(i+t1.getTupleDesc().numFields(), t2.getField(i));
-//        			}
-//        			
-//        			return newTuple;
-//        		}
-//        		
-//        		child2.rewind();
-//        	}
-//        	
-//        	return null;
-//        }
-    	
-    	
-    	
-    	
-    	while(true){
-    		while(child2.hasNext()){
-    			Tuple t2 = child2.next();
-    			if(p.filter(t1, t2)){
-    				TupleDesc td = getTupleDesc();
-    				Tuple t = new Tuple(td);
-    				for(int i=0;i<t1.getTupleDesc().numFields();i++){
-    					t.setField(i, t1.getField(i));
-    				}
-    				for(int i=0;i<t2.getTupleDesc().numFields();i++){
-    					t.setField(i+t1.getTupleDesc().numFields(), t2.getField(i));
-    				}
-    				
-    				return t;
-    			}
-    		}
-    		
-    		if(child1.hasNext()){
-    			t1 = child1.next();
-    			child2.rewind();
-    		}else{
-    			return null;
-    		}
-    	}
-    
+        if (block.isEmpty())
+            return null;
+        while (true) {
+            if (t2 != null) {
+                while (blockPos < block.size()) {
+                    Tuple t1 = block.get(blockPos++);
+                    if (p.filter(t1, t2)) {
+                        return Tuple.merge(comboTD, t1, t2);
+                    }
+                }
+            }
+            t2 = nextInner();
+            blockPos = 0;
+            if (t2 == null) {
+                // this block has seen the whole inner child
+                if (!fillBlock())
+                    return null;
+                restartInner();
+            }
+        }
     }
 
     @Override
@@ -11,6 +11,19 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+
+    /** The physical join algorithms the optimizer chooses between. */
+    public enum JoinAlgorithm {
+        /** {@link Join}: scan the inner child once per block of outer tuples */
+        NESTED_LOOP,
+        /** {@link HashEquiJoin}: hash the outer child, probe with the inner */
+        HASH,
+        /** {@link SortMergeJoin}: sort both children and merge them */
+        SORT_MERGE,
+        /** {@link IndexNestedLoopJoin}: search a BTreeFile index of the inner table per outer tuple */
+        INDEX_NESTED_LOOP
+    }
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
@@ -68,7 +81,26 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        JoinAlgorithm alg = lj.algorithm;
+        if (alg == JoinAlgorithm.INDEX_NESTED_LOOP && !IndexNestedLoopJoin.canProbe(p, plan2))
+            alg = null;
+        if (alg == null || (alg != JoinAlgorithm.NESTED_LOOP && lj.p != Predicate.Op.EQUALS
+                && alg != JoinAlgorithm.INDEX_NESTED_LOOP))
+            alg = lj.p == Predicate.Op.EQUALS ? JoinAlgorithm.HASH : JoinAlgorithm.NESTED_LOOP;
+
+        switch (alg) {
+        case HASH:
+            j = new HashEquiJoin(p, plan1, plan2);
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p, plan1, plan2);
+            break;
+        case INDEX_NESTED_LOOP:
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+            break;
+        default:
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
@@ -107,14 +139,158 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-        	
-        	
-            return cost1 + card1*cost2 + (card1>card2? card1:card2);
+            JoinAlgorithm alg = chooseJoinAlgorithm(j, card1, card2, cost1, cost2, true);
+            return estimateJoinCost(alg, j, card1, card2, cost1, cost2);
+        }
+    }
+
+    /**
+     * Choose the cheapest join algorithm for a join, according to
+     * {@link #estimateJoinCost(JoinAlgorithm, LogicalJoinNode, int, int, double, double)}.
+     * 
+     * @param innerIsBase
+     *            whether the right-hand side is a scan of the base table
+     *            j.t2Alias (rather than the result of other joins), which an
+     *            index nested-loop join requires
+     */
+    JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsBase) {
+        JoinAlgorithm best = JoinAlgorithm.NESTED_LOOP;
+        double bestCost = estimateJoinCost(best, j, card1, card2, cost1, cost2);
+        for (JoinAlgorithm alg : JoinAlgorithm.values()) {
+            if (alg == JoinAlgorithm.NESTED_LOOP)
+                continue;
+            if (alg == JoinAlgorithm.INDEX_NESTED_LOOP ? !innerIsBase || indexOf(j) == null
+                    : j.p != Predicate.Op.EQUALS)
+                continue;
+            double cost = estimateJoinCost(alg, j, card1, card2, cost1, cost2);
+            if (cost < bestCost) {
+                best = alg;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /** Number of outer tuples a hash join keeps in memory at a time */
+    private static final int HASH_JOIN_MEMORY = HashEquiJoin.MAP_SIZE;
+
+    /** Number of tuples each sort of a sort-merge join keeps in memory */
+    private static final int SORT_JOIN_MEMORY = SortMergeJoin.MEMORY_TUPLES / 2;
+
+    /**
+     * Estimate the cost of a join performed with a given algorithm, in the
+     * same units as cost1 and cost2; one predicate application, hash probe
+     * or comparison costs 1.
+     * <ul>
+     * <li>nested loop: the inner is scanned once per block of
+     * {@link Join#DEFAULT_BLOCK_PAGES} pages of outer tuples, and every pair
+     * of tuples is compared.</li>
+     * <li>hash: both sides are read once; the share of the outer beyond
+     * {@link HashEquiJoin#MAP_SIZE} tuples, and the matching share of the
+     * inner, is spilled to disk and read back. This is never more than the
+     * single merge pass of a sort-merge join over the same inputs.</li>
+     * <li>sort-merge: both sides are scanned once and sorted; a side larger
+     * than its half of {@link SortMergeJoin#MEMORY_TUPLES} is written out
+     * and read back once per merge pass.</li>
+     * <li>index nested loop: per outer tuple, a root-to-leaf search of the
+     * inner BTreeFile plus the leaf pages holding the matches.</li>
+     * </ul>
+     */
+    double estimateJoinCost(JoinAlgorithm alg, LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        switch (alg) {
+        case HASH: {
+            // the spilled share of both inputs is written out and read back
+            // once, like the runs of one merge pass of a sort
+            double spilled = Math.max(0.0, 1.0 - (double) HASH_JOIN_MEMORY / Math.max(card1, 1));
+            return (1 + 2 * spilled) * (cost1 + cost2) + card1 + card2;
+        }
+        case SORT_MERGE:
+            return cost1 + cost2 + sortIOCost(card1, cost1) + sortIOCost(card2, cost2)
+                    + sortCost(card1) + sortCost(card2) + card1 + card2;
+        case INDEX_NESTED_LOOP: {
+            BTreeFile f = indexOf(j);
+            int pages = Math.max(1, f.numPages());
+            double pageCost = cost2 / pages;
+            int keyLen = f.getTupleDesc().getFieldType(f.keyField()).getLen();
+            int fanout = Math.max(2, BufferPool.getPageSize() / (keyLen + 4));
+            int levels = 1 + (int) Math.ceil(Math.log(pages) / Math.log(fanout));
+            String tableName = Database.getCatalog().getTableName(
+                    p.getTableId(j.t2Alias));
+            TableStats s = TableStats.getTableStats(tableName);
+            double total = s == null ? card2 : s.totalTuples();
+            double matches;
+            if (j.p == Predicate.Op.EQUALS)
+                matches = s == null ? 1.0 : total / Math.max(1, s.numDistinctValues(f.keyField()));
+            else
+                matches = total * 3 / 10;
+            double tuplesPerPage = Math.max(1.0, total / pages);
+            return cost1 + card1 * ((levels + matches / tuplesPerPage) * pageCost + matches);
+        }
+        default: {
+            int blockTuples = Join.tuplesPerPages(outerTupleDesc(j), Join.DEFAULT_BLOCK_PAGES);
+            int blocks = Math.max(1, (card1 + blockTuples - 1) / blockTuples);
+            return cost1 + blocks * cost2 + (double) card1 * card2;
+        }
+        }
+    }
+
+    /**
+     * @return the TupleDesc of the left-hand table of j; the outer tuples of
+     *         a join of several tables are at least this wide
+     */
+    private TupleDesc outerTupleDesc(LogicalJoinNode j) {
+        Integer tableId = p.getTableId(j.t1Alias);
+        if (tableId != null) {
+            try {
+                return Database.getCatalog().getTupleDesc(tableId);
+            } catch (NoSuchElementException e) {
+                // fall through
+            }
+        }
+        return new TupleDesc(new Type[] { Type.INT_TYPE });
+    }
+
+    private static double sortCost(int card) {
+        return card * (Math.log(Math.max(card, 2)) / Math.log(2));
+    }
+
+    /**
+     * @return the cost of writing and re-reading the sorted runs of an
+     *         input of card tuples that costs cost to scan, or 0 if it is
+     *         sorted in memory
+     */
+    private static double sortIOCost(int card, double cost) {
+        if (card <= SORT_JOIN_MEMORY)
+            return 0;
+        int runs = (card + SORT_JOIN_MEMORY - 1) / SORT_JOIN_MEMORY;
+        int passes = Math.max(1, (int) Math.ceil(Math.log(runs) / Math.log(OrderBy.MERGE_FAN_IN)));
+        return 2 * passes * cost;
+    }
+
+    /**
+     * @return the BTreeFile of the right-hand table of j if it is keyed on
+     *         the join field of j and the predicate can use it, or null
+     */
+    private BTreeFile indexOf(LogicalJoinNode j) {
+        if (j instanceof LogicalSubplanJoinNode || j.t2Alias == null
+                || j.p == Predicate.Op.NOT_EQUALS || j.p == Predicate.Op.LIKE)
+            return null;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return null;
+        DbFile f;
+        try {
+            f = Database.getCatalog().getDatabaseFile(tableId);
+        } catch (NoSuchElementException e) {
+            return null;
         }
+        if (!(f instanceof BTreeFile))
+            return null;
+        BTreeFile bf = (BTreeFile) f;
+        String keyName = bf.getTupleDesc().getFieldName(bf.keyField());
+        return j.f2PureName.equals(keyName) ? bf : null;
     }
 
     /**
@@ -382,13 +558,23 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        boolean isSubplan = j instanceof LogicalSubplanJoinNode;
+        boolean t2IsBase = news.isEmpty() || !doesJoin(prevBest, j.t2Alias);
+        boolean t1IsBase = news.isEmpty() || !doesJoin(prevBest, j.t1Alias);
+        JoinAlgorithm alg1 = chooseJoinAlgorithm(j, t1card, t2card, t1cost, t2cost, t2IsBase);
+        double cost1 = isSubplan
+                ? estimateJoinCost(j, t1card, t2card, t1cost, t2cost)
+                : estimateJoinCost(alg1, j, t1card, t2card, t1cost, t2cost);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        JoinAlgorithm alg2 = chooseJoinAlgorithm(j2, t2card, t1card, t2cost, t1cost, t1IsBase);
+        double cost2 = isSubplan
+                ? estimateJoinCost(j2, t2card, t1card, t2cost, t1cost)
+                : estimateJoinCost(alg2, j2, t2card, t1card, t2cost, t1cost);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
+            alg1 = alg2;
             cost1 = cost2;
             tmp = rightPkey;
             rightPkey = leftPkey;
@@ -397,6 +583,14 @@ public class JoinOptimizer {
         if (cost1 >= bestCostSoFar)
             return null;
 
+        if (!isSubplan) {
+            // j is shared by every plan containing it; record the algorithm
+            // on a copy that belongs to this plan
+            j = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName,
+                    j.f2PureName, j.p);
+            j.algorithm = alg1;
+        }
+
         CostCard cc = new CostCard();
 
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
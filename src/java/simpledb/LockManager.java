@@ -1,42 +1,60 @@
 package simpledb;
-import java.util.ArrayList;
-import java.util.Random;
-
-import simpledb.LockManager.LockType;
-import simpledb.LockManager.ObjLock;
 
-
-import java.io.IOException;
-import java.lang.reflect.Array;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadFactory;
 
+/**
+ * LockManager keeps the page-level shared and exclusive locks of
+ * transactions.
+ * <p>
+ * There is no global monitor: the lock table is a ConcurrentHashMap, and
+ * each page lock ({@link ObjLock}) is its own monitor with its own FIFO
+ * queue of waiting requests. Lock traffic on unrelated pages therefore
+ * never contends, and a release only wakes the waiters of that page.
+ * Consecutive shared requests at the head of a queue are granted together.
+ * <p>
+ * Blocked transactions are recorded in a {@link WaitsForGraph}; a deadlock
+ * is detected as soon as the request closing the cycle is queued, and is
+ * resolved by aborting one transaction on the cycle.
+ */
 public class LockManager {
     enum LockType {
         SLock, XLock
     }
 
+    /** A request of a transaction that is waiting for a page lock. */
+    class LockRequest {
+        final TransactionId tid;
+        final LockType type;
+        // the lock this request waits in the queue of
+        ObjLock lock;
+        // set when this request's transaction is chosen as a deadlock victim
+        volatile boolean aborted;
+
+        LockRequest(TransactionId tid, LockType type) {
+            this.tid = tid;
+            this.type = type;
+        }
+    }
+
     class ObjLock {
-        // boolean blocked;
         LockType type;
         PageId obj;
         ArrayList<TransactionId> holders;
-
-        /*
-        public boolean isBlocked() {
-            return blocked;
-        }
-        public void setBlocked(boolean blocked) {
-            this.blocked = blocked;
-        }
-        */
+        // requests waiting for this lock, in arrival order
+        LinkedList<LockRequest> waiters;
+        // set once this lock is dropped from the lock table
+        boolean removed;
 
         public ObjLock(LockType t, PageId obj, ArrayList<TransactionId> holders) {
-            // this.blocked = false;
             this.type = t;
             this.obj = obj;
             this.holders = holders;
+            this.waiters = new LinkedList<LockRequest>();
+            this.removed = false;
         }
 
         public void setType(LockType type) {
@@ -55,165 +73,279 @@ public class LockManager {
             return holders;
         }
 
-        public boolean tryUpgradeLock(TransactionId tid) {
-            if (type == LockType.SLock && holders.size() == 1 && holders.get(0).equals(tid)) {
-                type = LockType.XLock;
-                return true;
+        /**
+         * @return true if req can be granted now: it must be compatible
+         *         with the current holders, and may only overtake waiting
+         *         requests if they are all shared like itself
+         */
+        boolean isGrantable(LockRequest req) {
+            if (req.type == LockType.XLock) {
+                if (!holders.isEmpty()
+                        && !(holders.size() == 1 && holders.get(0).equals(req.tid)))
+                    return false;
+                return waiters.isEmpty() || waiters.getFirst() == req;
             }
-            return false;
+            if (!holders.isEmpty() && type == LockType.XLock)
+                return false;
+            for (LockRequest ahead : waiters) {
+                if (ahead == req)
+                    return true;
+                if (ahead.type == LockType.XLock)
+                    return false;
+            }
+            return true;
         }
 
-        public TransactionId addHolder(TransactionId tid) {
-            if (type == LockType.SLock) {
-                if (!holders.contains(tid)) {
-                    holders.add(tid);
-                }
-                return tid;
+        /**
+         * @return the transactions req is waiting for: the holders it
+         *         conflicts with and the conflicting requests queued ahead
+         */
+        Set<TransactionId> blockersOf(LockRequest req) {
+            HashSet<TransactionId> blockers = new HashSet<TransactionId>();
+            if (req.type == LockType.XLock || type == LockType.XLock)
+                blockers.addAll(holders);
+            for (LockRequest ahead : waiters) {
+                if (ahead == req)
+                    break;
+                if (req.type == LockType.XLock || ahead.type == LockType.XLock)
+                    blockers.add(ahead.tid);
             }
-            return null;
+            blockers.remove(req.tid);
+            return blockers;
+        }
+
+        void grant(LockRequest req) {
+            if (holders.isEmpty() || req.type == LockType.XLock)
+                type = req.type;
+            if (!holders.contains(req.tid))
+                holders.add(req.tid);
         }
     }
 
-    private ConcurrentHashMap<PageId, ObjLock> lockTable;
-    private ConcurrentHashMap<TransactionId, ArrayList<PageId>> transactionTable;
+    private final ConcurrentHashMap<PageId, ObjLock> lockTable;
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> transactionTable;
+    // the request each blocked transaction is waiting on
+    private final ConcurrentHashMap<TransactionId, LockRequest> waiting;
+    private final WaitsForGraph waitsFor;
 
     public LockManager(int lockTabCap, int transTabCap) {
-        this.lockTable = new ConcurrentHashMap<>(lockTabCap);
-        this.transactionTable = new ConcurrentHashMap<>(transTabCap);
+        this(lockTabCap, transTabCap, WaitsForGraph.VictimPolicy.YOUNGEST);
     }
 
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-        ArrayList<PageId> lockList = getLockList(tid);
-        return lockList != null && lockList.contains(pid);
+    /**
+     * @param victimPolicy how to choose the transaction to abort when a
+     *        deadlock is found
+     */
+    LockManager(int lockTabCap, int transTabCap, WaitsForGraph.VictimPolicy victimPolicy) {
+        this.lockTable = new ConcurrentHashMap<>(Math.max(lockTabCap, 16));
+        this.transactionTable = new ConcurrentHashMap<>(Math.max(transTabCap, 16));
+        this.waiting = new ConcurrentHashMap<>();
+        this.waitsFor = new WaitsForGraph(victimPolicy, new WaitsForGraph.LockCounter() {
+            public int numLocks(TransactionId tid) {
+                Set<PageId> lockList = transactionTable.get(tid);
+                return lockList == null ? 0 : lockList.size();
+            }
+        });
     }
 
-    private synchronized void block(PageId what, long start, long timeout)
-            throws TransactionAbortedException {
-        // activate blocking
-        // lockTable.get(what).setBlocked(true);
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> lockList = transactionTable.get(tid);
+        return lockList != null && lockList.contains(pid);
+    }
 
-        if (System.currentTimeMillis() - start > timeout) {
-            // System.out.println(Thread.currentThread().getId() + ": aborted");
-            throw new TransactionAbortedException();
+    /**
+     * @return true if tid holds the exclusive lock on pid, and so may have
+     *         modified the page
+     */
+    public boolean holdsExclusiveLock(TransactionId tid, PageId pid) {
+        ObjLock lock = lockTable.get(pid);
+        if (lock == null)
+            return false;
+        synchronized (lock) {
+            return lock.type == LockType.XLock && lock.holders.contains(tid);
         }
+    }
 
-        try {
-            wait(timeout);
-            if (System.currentTimeMillis() - start > timeout) {
-                // System.out.println(Thread.currentThread().getId() + ": aborted");
-                throw new TransactionAbortedException();
-            }
-        } catch (InterruptedException e) {
-            /* do nothing */
-            e.printStackTrace();
+    private void updateTransactionTable(TransactionId tid, PageId pid) {
+        Set<PageId> lockList = transactionTable.get(tid);
+        if (lockList == null) {
+            lockList = ConcurrentHashMap.newKeySet();
+            Set<PageId> prev = transactionTable.putIfAbsent(tid, lockList);
+            if (prev != null)
+                lockList = prev;
         }
+        lockList.add(pid);
     }
 
-    private synchronized void updateTransactionTable(TransactionId tid, PageId pid) {
-        if (transactionTable.containsKey(tid)) {
-            if (!transactionTable.get(tid).contains(pid)) {
-                transactionTable.get(tid).add(pid);
-            }
-        } else {
-            // no entry tid
-            ArrayList<PageId> lockList = new ArrayList<PageId>();
-            lockList.add(pid);
-            transactionTable.put(tid, lockList);
+    /**
+     * @return the lock object of pid, which the caller must synchronize on
+     *         and check is not {@link ObjLock#removed}
+     */
+    private ObjLock lockFor(PageId pid) {
+        ObjLock lock = lockTable.get(pid);
+        if (lock == null) {
+            lock = new ObjLock(LockType.SLock, pid, new ArrayList<TransactionId>());
+            ObjLock prev = lockTable.putIfAbsent(pid, lock);
+            if (prev != null)
+                lock = prev;
         }
+        return lock;
     }
 
-    public synchronized void acquireLock(TransactionId tid, PageId pid, LockType reqLock, int maxTimeout)
+    /**
+     * Acquire a lock on pid for tid, blocking while the lock is held in a
+     * conflicting mode or requested by transactions queued ahead of tid.
+     * <p>
+     * A blocked transaction is only aborted when it closes a cycle in the
+     * waits-for graph and is chosen as the victim; the victim may also be
+     * another transaction on the cycle, which is then woken and aborted.
+     *
+     * @throws TransactionAbortedException if tid is chosen as the victim of
+     *         a deadlock
+     */
+    public void acquireLock(TransactionId tid, PageId pid, LockType reqLock)
             throws TransactionAbortedException {
-        // boolean isAcquired = false;
-        long start = System.currentTimeMillis();
-        Random rand = new Random();
-        long randomTimeout = rand.nextInt((maxTimeout - 0) + 1) + 0;
+        LockRequest req = new LockRequest(tid, reqLock);
+        ObjLock lock;
         while (true) {
-            if (lockTable.containsKey(pid)) {
-                // page is locked by some transaction
-                if (lockTable.get(pid).getType() == LockType.SLock) {
-                    if (reqLock == LockType.SLock) {
+            lock = lockFor(pid);
+            synchronized (lock) {
+                if (lock.removed) {
+                    // lost a race with the last release; look the lock up again
+                    continue;
+                }
+                if (lock.holders.contains(tid)
+                        && (lock.type == LockType.XLock || reqLock == LockType.SLock)) {
+                    return;
+                }
+
+                if (lock.isGrantable(req)) {
+                    lock.grant(req);
+                    updateTransactionTable(tid, pid);
+                    return;
+                }
+
+                // upgrades go first, since the holder blocks everyone behind it
+                if (lock.holders.contains(tid))
+                    lock.waiters.addFirst(req);
+                else
+                    lock.waiters.addLast(req);
+                req.lock = lock;
+                break;
+            }
+        }
+
+        waiting.put(tid, req);
+        boolean granted = false;
+        try {
+            Set<TransactionId> blockers = null;
+            while (true) {
+                Set<TransactionId> current;
+                synchronized (lock) {
+                    if (req.aborted)
+                        throw new TransactionAbortedException();
+                    if (lock.isGrantable(req)) {
+                        lock.waiters.remove(req);
+                        lock.grant(req);
+                        granted = true;
                         updateTransactionTable(tid, pid);
-                        assert lockTable.get(pid).addHolder(tid) != null;
-                        // isAcquired = true;
+                        // the next shared request in the queue may now be grantable too
+                        lock.notifyAll();
                         return;
-                    } else {
-                        // request XLock
-                        if (transactionTable.containsKey(tid) && transactionTable.get(tid).contains(pid)
-                                && lockTable.get(pid).getHolders().size() == 1) {
-                            // sanity check
-                            assert lockTable.get(pid).getHolders().get(0) == tid;
-                            // this is a combined case when lock on pid hold only by one trans (which is exactly tid)
-                            lockTable.get(pid).tryUpgradeLock(tid);
-                            // isAcquired = true;
-                            return;
-                        } else {
-                            // all need to do is just blocking
-                            block(pid, start, randomTimeout);
-                        }
                     }
-                } else {
-                    // already get a Xlock on pid
-                    if (lockTable.get(pid).getHolders().get(0) == tid) {
-                        // Xlock means only one holder
-                        // request xlock or slock on the pid with that tid
-                        // sanity check
-                        assert lockTable.get(pid).getHolders().size() == 1;
-                        // isAcquired = true;
-                        return;
-                    } else {
-                        // otherwise block
-                        block(pid, start, randomTimeout);
+                    current = lock.blockersOf(req);
+                    if (current.equals(blockers)) {
+                        lock.wait();
+                        continue;
                     }
                 }
-            } else {
-                ArrayList<TransactionId> initialHolders = new ArrayList<>();
-                initialHolders.add(tid);
-                lockTable.put(pid, new ObjLock(reqLock, pid, initialHolders));
-                updateTransactionTable(tid, pid);
-                // isAcquired = true;
-                return;
+                // the graph is updated without holding any page lock monitor,
+                // so that waking a victim cannot deadlock with another waiter
+                blockers = current;
+                TransactionId victim = waitsFor.block(tid, blockers);
+                if (victim != null)
+                    abortWaiter(victim);
+            }
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        } finally {
+            waiting.remove(tid, req);
+            waitsFor.unblock(tid);
+            if (!granted) {
+                synchronized (lock) {
+                    abandon(lock, req);
+                }
             }
         }
     }
 
-    public synchronized void releaseLock(TransactionId tid, PageId pid) {
+    /** Wake the waiting request of victim so that it aborts. */
+    private void abortWaiter(TransactionId victim) {
+        LockRequest vreq = waiting.get(victim);
+        if (vreq == null) {
+            // already granted or gone
+            return;
+        }
+        synchronized (vreq.lock) {
+            vreq.aborted = true;
+            vreq.lock.notifyAll();
+        }
+    }
 
-        // remove from trans table
-        if (transactionTable.containsKey(tid)) {
-            transactionTable.get(tid).remove(pid);
-            if (transactionTable.get(tid).size() == 0) {
-                transactionTable.remove(tid);
-            }
+    /** Withdraw a waiting request; the requests behind it may now proceed. */
+    private void abandon(ObjLock lock, LockRequest req) {
+        lock.waiters.remove(req);
+        lock.notifyAll();
+        removeIfUnused(lock);
+    }
+
+    /** Drop lock from the lock table if nobody holds or waits for it. */
+    private void removeIfUnused(ObjLock lock) {
+        if (lock.holders.isEmpty() && lock.waiters.isEmpty()) {
+            lock.removed = true;
+            lockTable.remove(lock.obj, lock);
         }
+    }
 
-        // remove from locktable
-        if (lockTable.containsKey(pid)) {
-            lockTable.get(pid).getHolders().remove(tid);
-            if (lockTable.get(pid).getHolders().size() == 0) {
-                // no more threads are waiting here
-                lockTable.remove(pid);
-            } else {
-                // ObjLock lock = lockTable.get(pid);
-                // synchronized (lock) {
-                notifyAll();
-                //}
-            }
+    public void releaseLock(TransactionId tid, PageId pid) {
+        // remove from trans table; the (possibly empty) entry of tid itself
+        // is only dropped when the transaction completes
+        Set<PageId> lockList = transactionTable.get(tid);
+        if (lockList != null) {
+            lockList.remove(pid);
         }
+        releaseObjLock(tid, pid);
     }
 
-    public synchronized void releaseLocksOnTransaction(TransactionId tid) {
-        if (transactionTable.containsKey(tid)) {
-            PageId[] pidArr = new PageId[transactionTable.get(tid).size()];
-            PageId[] toRelease = transactionTable.get(tid).toArray(pidArr);
-            for (PageId pid : toRelease) {
-                releaseLock(tid, pid);
+    private void releaseObjLock(TransactionId tid, PageId pid) {
+        ObjLock lock = lockTable.get(pid);
+        if (lock != null) {
+            synchronized (lock) {
+                if (lock.holders.remove(tid)) {
+                    removeIfUnused(lock);
+                    lock.notifyAll();
+                }
             }
+        }
+    }
 
+    public void releaseLocksOnTransaction(TransactionId tid) {
+        Set<PageId> lockList = transactionTable.remove(tid);
+        if (lockList != null) {
+            for (PageId pid : lockList) {
+                releaseObjLock(tid, pid);
+            }
         }
     }
 
-    public synchronized ArrayList<PageId> getLockList(TransactionId tid) {
-        return transactionTable.getOrDefault(tid, null);
+    /**
+     * @return a snapshot of the pages locked by tid, or null if it holds
+     *         no locks
+     */
+    public ArrayList<PageId> getLockList(TransactionId tid) {
+        Set<PageId> lockList = transactionTable.get(tid);
+        if (lockList == null)
+            return null;
+        return new ArrayList<PageId>(lockList);
     }
-}
\ No newline at end of file
+}
@@ -2,8 +2,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -35,46 +37,119 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself is a control file: its first long integer
+represents the log sequence number (LSN) of the last written
+checkpoint, or -1 if there are no checkpoints.  An LSN is the position
+of a byte in the log since the log was created.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files next to the control
+file, each named after the LSN of its first byte (see LogSegments).
+Records are variable length and may span two segments.  The log is
+truncated by deleting the segments before the oldest record still
+needed, so the LSN of a record never changes.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with a byte type, a long integer
+transaction id, and the long integer LSN of the previous record of the
+same transaction, or -1 for its first record and for CHECKPOINT
+records.  These back-pointers chain the records of each transaction,
+so undo reads only the records of the transactions it undoes.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing the
+position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+after image.  Each image is a byte page type tag (HEAP_PAGE,
+BTREE_ROOT_PTR_PAGE, BTREE_INTERNAL_PAGE, BTREE_LEAF_PAGE or
+BTREE_HEADER_PAGE), the integer table id and page number of the page,
+and the integer length of the page data followed by the data.  They
+are written with LogFile.writePageData() and decoded, without
+reflection, by LogFile.readPageData().
+
+<li>DELTA RECORDS log an update as the byte ranges where the before and
+after images differ (a header bitmap byte, a tuple slot, the entries a
+B+tree page shifted), instead of two full images.  A DELTA record is the
+byte page type tag, the integer table id and page number, an integer
+count of ranges and, for each range, its integer offset and length, its
+old bytes and its new bytes (see PageDelta).  Redo applies the new bytes
+and undo the old bytes to the page on disk, so a page is logged as a
+delta only when the log describes its before image exactly: a page gets
+a full UPDATE record the first time it is logged after a checkpoint,
+which also protects it from torn writes, and whenever its before image
+is not the last image logged for it.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first and last log records,
+followed by the dirty-page table: the pages whose logged updates may
+not be on disk yet, each with the offset of its oldest such record.  The
+format of the record is an integer count of the number of transactions,
+as well as a long integer transaction id, a long integer first record
+offset and a long integer last record offset for each active
+transaction, then an integer count of dirty pages, and
+a byte page type tag, integer table id, integer page number and long
+integer record offset for each dirty page.
 
 </ul>
 
+<p> <u> Group commit: </u> a committing transaction appends its COMMIT
+record and then waits until the log is durable up to it, without holding
+the LogFile monitor.  A flusher thread forces the log once for every
+commit that has queued up meanwhile, waiting up to a flush interval for a
+batch of committers to gather (see {@link #setGroupCommit}).  Other
+callers of {@link #force} force the log at once.
+
+<p> <u> Checkpoints </u> are fuzzy: {@link #logCheckpoint} writes the
+transaction table and the buffer pool's dirty-page table without
+flushing any page, and the pages are written by the buffer pool's
+background writer.  Redo starts at the oldest record of the dirty-page
+table.  A checkpoint is also taken automatically once enough log has
+been written, or enough time has passed, since the last one (see
+{@link #setCheckpointPolicy}).
+
+<p> <u> Recovery </u> repeats history and then undoes the losers, in
+three passes over the log (see {@link #recover}):
+<ul>
+<li> Analysis reads forward from the last checkpoint, or from the
+oldest record of its dirty-page table.  It builds the
+transaction table, which holds the losers (transactions with no COMMIT
+or ABORT record) and their last records.  It also builds the
+dirty-page table, which gives each updated page the records that
+still have to be redone on it.  A full UPDATE image supersedes every
+earlier record of its page, so those earlier records are never read
+again.  A torn record at the end of the log ends the analysis, and the
+log is cut back to the last complete record.
+<li> Redo rebuilds each page of the dirty-page table in memory from its
+records and writes it once.  Pages are independent, so they are
+redone by several threads.
+<li> Undo follows the back-pointers of all losers at once, always
+undoing the loser record with the largest LSN next, so it reads only
+the records of the losers.  A checkpoint is then written, so the undone
+losers are never seen by a later recovery.
+</ul>
+A rollback at run time logs what it restores as compensation records:
+ordinary UPDATE or DELTA records of the aborting transaction, written
+before its ABORT record.  Redo then repeats aborts like any other
+update, so it needs no undo of its own.
+
+<p> Records are built in an in-memory log buffer and written to the file
+in large sequential appends, when the buffer is full and before the log
+is forced or read.  Reads go through a buffer too (see LogReader).
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile control; // holds the LSN of the last checkpoint
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,7 +157,38 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_PREV_RECORD = -1;
+
+    // page type tags of the images in UPDATE records
+    static final int HEAP_PAGE = 1;
+    static final int BTREE_ROOT_PTR_PAGE = 2;
+    static final int BTREE_INTERNAL_PAGE = 3;
+    static final int BTREE_LEAF_PAGE = 4;
+    static final int BTREE_HEADER_PAGE = 5;
+
+    /** Changed ranges at most this many bytes apart are logged as one */
+    static final int DELTA_GAP = 8;
+
+    /** System property setting the bytes after which a new log segment
+        is started */
+    public static final String SEGMENT_SIZE_PROPERTY = "simpledb.log.segmentsize";
+    /** Default bytes after which a new log segment is started */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** Default bytes of log written between automatic checkpoints */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 16 * 1024 * 1024;
+    /** Default milliseconds between automatic checkpoints; 0 for none */
+    public static final long DEFAULT_CHECKPOINT_MILLIS = 0;
+
+    /** Threads that redo pages in parallel during recovery */
+    static final int REDO_THREADS = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    /** Bytes of records buffered in memory before they are written */
+    static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    /** Bytes read from the log file at a time */
+    static final int READ_BUFFER_SIZE = 64 * 1024;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
@@ -91,7 +197,58 @@ public class LogFile {
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    long checkpointEnd = -1; // end of the last checkpoint record //protected by this
+    private boolean controlUnforced = false; //protected by this
+    private long checkpointBytes = DEFAULT_CHECKPOINT_BYTES; //protected by this
+    private long checkpointMillis = DEFAULT_CHECKPOINT_MILLIS; //protected by this
+    private long lastCheckpointMillis = System.currentTimeMillis(); //protected by this
+    private boolean checkpointing = false; //protected by this
+
+    // records appended but not yet written to the segments, which end at
+    // LSN fileEnd
+    private final LogBuffer buffer = new LogBuffer();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private long fileEnd = 0; //protected by this
+
+    // pages read and written by the redo of the last recovery
+    private final AtomicInteger redoReads = new AtomicInteger();
+    private final AtomicInteger redoWrites = new AtomicInteger();
+
+    // the last image logged for each page since the last checkpoint; a
+    // page may be logged as a delta only if its before image is exactly
+    // this image. Only as many images as the buffer pool holds pages are
+    // kept, least recently logged dropped first; a page whose image was
+    // dropped is logged in full.
+    private final LinkedHashMap<PageId,byte[]> loggedImages =
+        new LinkedHashMap<PageId,byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId,byte[]> eldest) {
+                return size() > Database.getBufferPool().getNumPages();
+            }
+        }; //protected by this
+
+    /** Default milliseconds the flusher waits for a batch of committers */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 0;
+    /** Default number of waiting committers that triggers a flush */
+    public static final int DEFAULT_FLUSH_BATCH_SIZE = 32;
+    // the flusher exits after this long without requests
+    private static final long FLUSHER_IDLE_MILLIS = 1000;
+
+    // group commit state, all protected by this: records are numbered in
+    // the order they are appended; durableSeq is the last one known forced
+    long appendSeq = 0;
+    long durableSeq = 0;
+    private long requestedSeq = 0;
+    private int waiters = 0;
+    private Thread flusher = null;
+    private long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private int flushBatchSize = DEFAULT_FLUSH_BATCH_SIZE;
+    private long forces = 0;
+
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // the last record of each transaction, where its undo chain starts
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -106,7 +263,9 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        control = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, Long.getLong(SEGMENT_SIZE_PROPERTY, DEFAULT_SEGMENT_SIZE));
+        fileEnd = segments.end();
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -125,17 +284,69 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appendSeq++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
+            buffer.reset();
+            loggedImages.clear();
+            writeControl(NO_CHECKPOINT_ID);
             
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            // LSNs go on from the end of the discarded log
+            segments.reset();
+            fileEnd = segments.end();
+            currentOffset = fileEnd;
         }
     }
 
+    /** A ByteArrayOutputStream that writes its contents without copying */
+    private static class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer() {
+            super(WRITE_BUFFER_SIZE);
+        }
+
+        void writeTo(LogSegments segments) throws IOException {
+            segments.append(buf, 0, count);
+            reset();
+        }
+    }
+
+    // write the buffered records to the segments //protected by this
+    private void flushBuffer() throws IOException {
+        if (buffer.size() > 0) {
+            fileEnd += buffer.size();
+            buffer.writeTo(segments);
+        }
+    }
+
+    // point the control file at a checkpoint //protected by this
+    private void writeControl(long checkpoint) throws IOException {
+        control.seek(0);
+        control.writeLong(checkpoint);
+        controlUnforced = true;
+    }
+
+    // read the LSN of the last checkpoint from the control file
+    private long readControl() throws IOException {
+        if (control.length() < LONG_SIZE)
+            return NO_CHECKPOINT_ID;
+        control.seek(0);
+        return control.readLong();
+    }
+
+    // a record has been appended to the buffer //protected by this
+    private void endRecord() throws IOException {
+        currentOffset = fileEnd + buffer.size();
+        if (buffer.size() >= WRITE_BUFFER_SIZE)
+            flushBuffer();
+    }
+
+    // link the record about to be appended for tid to its previous
+    // record; returns the back-pointer to write //protected by this
+    private long chain(long tid) {
+        Long prev = tidToLastLogRecord.put(tid, currentOffset);
+        return prev != null ? prev : NO_PREV_RECORD;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -156,18 +367,20 @@ public class LogFile {
                 //should we verify that this is a live transaction?
 
                 // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
+                // live transactions (needs tidToLastLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
+                out.writeByte(ABORT_RECORD);
                 
-                raf.writeLong(tid.getId());
+                out.writeLong(tid.getId());
+                out.writeLong(chain(tid.getId()));
                 
-                raf.writeLong(currentOffset);
+                out.writeLong(currentOffset);
                 
-                currentOffset = raf.getFilePointer();
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
@@ -177,24 +390,76 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeByte(COMMIT_RECORD);
+            
+            out.writeLong(tid.getId());
+            out.writeLong(chain(tid.getId()));
+           
+            out.writeLong(currentOffset);
+            
+            endRecord();
+            // a checkpoint after this record must not list tid as active
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+            seq = appendSeq;
+        }
+        waitDurable(seq);
+        if (checkpointDue())
+            autoCheckpoint();
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        
-        raf.writeLong(tid.getId());
-       
-        raf.writeLong(currentOffset);
-        
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Take checkpoints automatically after the given amount of log or
+        time since the last one.
+        @param bytes bytes of log between checkpoints, or 0 for no limit
+        @param millis milliseconds between checkpoints, or 0 for no limit
+    */
+    public synchronized void setCheckpointPolicy(long bytes, long millis) {
+        checkpointBytes = bytes;
+        checkpointMillis = millis;
+    }
+
+    // true if a checkpoint is due and no other thread is taking one
+    private synchronized boolean checkpointDue() {
+        if (checkpointing || currentOffset < 0)
+            return false;
+        long since = currentOffset - (checkpointEnd >= 0 ? checkpointEnd : segments.start());
+        boolean due = (checkpointBytes > 0 && since >= checkpointBytes)
+            || (checkpointMillis > 0 && since > 0
+                && System.currentTimeMillis() - lastCheckpointMillis >= checkpointMillis);
+        if (due)
+            checkpointing = true;
+        return due;
+    }
+
+    private void autoCheckpoint() throws IOException {
+        try {
+            logCheckpoint();
+        } finally {
+            synchronized (this) {
+                checkpointing = false;
+            }
+        }
+    }
+
+    /** The position of the next record as a log sequence number, which
+        stays valid across truncation.  Records appended later get larger
+        numbers.
+    */
+    synchronized long currentLsn() {
+        return currentOffset >= 0 ? currentOffset : fileEnd + buffer.size();
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  The update is
+        logged as a DELTA record of the changed bytes when the log already
+        holds the before image of the page.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -204,111 +469,373 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        logUpdate(tid.getId(), pageType(after), after.getId(),
+                before.getPageData(), after.getPageData());
+    }
+
+    /** Write an UPDATE or DELTA record for the page, given the bytes of
+        its before image (see Page#getBeforeImageData), so that the before
+        image is never built as a page.
+    */
+    synchronized void logWrite(TransactionId tid, byte[] before, Page after)
+        throws IOException {
+        logUpdate(tid.getId(), pageType(after), after.getId(),
+                before, after.getPageData());
+    }
+
+    // append an UPDATE or DELTA record for the page //protected by this
+    private void logUpdate(long tid, int type, PageId pid, byte[] beforeData,
+            byte[] afterData) throws IOException {
         preAppend();
+        // afterData is a copy made by getPageData, so it is ours to keep
+        byte[] last = loggedImages.put(pid, afterData);
+        if (last != null && Arrays.equals(last, beforeData)) {
+            /* delta record consists of
+
+               record type
+               transaction id
+               previous record of the transaction
+               changed ranges (see PageDelta)
+               start offset
+            */
+            out.writeByte(DELTA_RECORD);
+            out.writeLong(tid);
+            out.writeLong(chain(tid));
+            new PageDelta(type, pid, beforeData, afterData).write(out);
+            out.writeLong(currentOffset);
+            endRecord();
+            return;
+        }
         /* update record conists of
 
            record type
            transaction id
+           previous record of the transaction
            before page data (see writePageData)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
+        out.writeByte(UPDATE_RECORD);
         
-        raf.writeLong(tid.getId());
+        out.writeLong(tid);
+        out.writeLong(chain(tid));
         
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
+        writePageData(out, type, pid, beforeData);
+        writePageData(out, type, pid, afterData);
+        out.writeLong(currentOffset);
         
-        currentOffset = raf.getFilePointer();
+        endRecord();
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    void writePageData(DataOutput out, int type, PageId pid, byte[] pageData)
+        throws IOException{
+        //page data is:
+        // page type tag
+        // table id
+        // page number
+        // page data length
+        // page data
+
+        out.writeByte(type);
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
+        out.writeInt(pageData.length);
+        
+        out.write(pageData);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    PageImage readPageData(LogReader in) throws IOException {
+        int type = in.readByte();
+        int tableId = in.readInt();
+        int pgNo = in.readInt();
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return new PageImage(type, tableId, pgNo, pageData);
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    // step over a page image of an UPDATE record
+    private static void skipPageData(LogReader in) throws IOException {
+        in.readByte();
+        in.readInt();
+        in.readInt();
+        in.skip(in.readInt());
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    private static int pageType(Page p) {
+        if (p instanceof HeapPage)
+            return HEAP_PAGE;
+        if (p instanceof BTreeLeafPage)
+            return BTREE_LEAF_PAGE;
+        if (p instanceof BTreeInternalPage)
+            return BTREE_INTERNAL_PAGE;
+        if (p instanceof BTreeHeaderPage)
+            return BTREE_HEADER_PAGE;
+        if (p instanceof BTreeRootPtrPage)
+            return BTREE_ROOT_PTR_PAGE;
+        throw new IllegalArgumentException("cannot log pages of type " + p.getClass().getName());
+    }
 
-        raf.writeUTF(pageClassName);
-        
-        raf.writeUTF(idClassName);
-        
+    private static int pageType(PageId pid) {
+        if (!(pid instanceof BTreePageId))
+            return HEAP_PAGE;
+        switch (((BTreePageId) pid).pgcateg()) {
+        case BTreePageId.ROOT_PTR:
+            return BTREE_ROOT_PTR_PAGE;
+        case BTreePageId.INTERNAL:
+            return BTREE_INTERNAL_PAGE;
+        case BTreePageId.LEAF:
+            return BTREE_LEAF_PAGE;
+        default:
+            return BTREE_HEADER_PAGE;
+        }
+    }
 
-        raf.writeInt(pageInfo.length);
-        
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-            
+    /** Rebuild the page of the given type tag from its logged data. */
+    static Page decodePage(int type, int tableId, int pgNo, byte[] data)
+        throws IOException {
+        switch (type) {
+        case HEAP_PAGE:
+            return new HeapPage(new HeapPageId(tableId, pgNo), data);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreeRootPtrPage(new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR), data);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreeInternalPage(new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL),
+                    data, keyField(tableId));
+        case BTREE_LEAF_PAGE:
+            return new BTreeLeafPage(new BTreePageId(tableId, pgNo, BTreePageId.LEAF),
+                    data, keyField(tableId));
+        case BTREE_HEADER_PAGE:
+            return new BTreeHeaderPage(new BTreePageId(tableId, pgNo, BTreePageId.HEADER), data);
+        default:
+            throw new IOException("unknown page type " + type + " in log");
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        
-        raf.write(pageData);
-        
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    private static int keyField(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyField();
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** The page id of the page with the given type tag. */
+    static PageId pageId(int type, int tableId, int pgNo) throws IOException {
+        switch (type) {
+        case HEAP_PAGE:
+            return new HeapPageId(tableId, pgNo);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL);
+        case BTREE_LEAF_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.LEAF);
+        case BTREE_HEADER_PAGE:
+            return new BTreePageId(tableId, pgNo, BTreePageId.HEADER);
+        default:
+            throw new IOException("unknown page type " + type + " in log");
+        }
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+    /** The data of a page, as logged or being restored. */
+    static class PageImage {
+        final int type;
+        final int tableId;
+        final int pgNo;
+        byte[] data;
+
+        PageImage(int type, int tableId, int pgNo, byte[] data) {
+            this.type = type;
+            this.tableId = tableId;
+            this.pgNo = pgNo;
+            this.data = data;
+        }
+
+        PageId pid() throws IOException {
+            return pageId(type, tableId, pgNo);
+        }
+
+        /** The image of the page that is on disk now. */
+        static PageImage read(int type, int tableId, int pgNo) throws IOException {
+            DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+            byte[] data = f.readPage(pageId(type, tableId, pgNo)).getPageData();
+            return new PageImage(type, tableId, pgNo, data);
+        }
+
+        /** @return true if the page on disk already holds the image */
+        boolean isOnDisk() throws IOException {
+            try {
+                return Arrays.equals(data, read(type, tableId, pgNo).data);
+            } catch (IllegalArgumentException e) {
+                return false; // past the end of the file
+            }
+        }
+
+        /** Write the image to its page on disk. */
+        void write() throws IOException {
+            Database.getCatalog().getDatabaseFile(tableId)
+                .writePage(decodePage(type, tableId, pgNo, data));
+        }
+    }
+
+    /**
+     * The byte ranges of a page changed by one update, with their old and
+     * new contents: the body of a DELTA record.
+     */
+    static class PageDelta {
+        final int type;
+        final int tableId;
+        final int pgNo;
+        final int[] offsets;
+        final byte[][] olds;
+        final byte[][] news;
+
+        /** The ranges where before and after differ. */
+        PageDelta(int type, PageId pid, byte[] before, byte[] after) {
+            this.type = type;
+            this.tableId = pid.getTableId();
+            this.pgNo = pid.getPageNumber();
+            ArrayList<int[]> ranges = new ArrayList<int[]>();
+            int i = 0;
+            while (i < after.length) {
+                if (before[i] == after[i]) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                int end = i + 1;
+                // extend over equal runs shorter than DELTA_GAP
+                for (int j = end; j < after.length && j < end + DELTA_GAP; j++) {
+                    if (before[j] != after[j])
+                        end = j + 1;
+                }
+                ranges.add(new int[] { start, end });
+                i = end;
+            }
+            offsets = new int[ranges.size()];
+            olds = new byte[ranges.size()][];
+            news = new byte[ranges.size()][];
+            for (int r = 0; r < offsets.length; r++) {
+                int[] range = ranges.get(r);
+                offsets[r] = range[0];
+                olds[r] = Arrays.copyOfRange(before, range[0], range[1]);
+                news[r] = Arrays.copyOfRange(after, range[0], range[1]);
+            }
+        }
+
+        PageDelta(LogReader in) throws IOException {
+            type = in.readByte();
+            tableId = in.readInt();
+            pgNo = in.readInt();
+            int n = in.readInt();
+            offsets = new int[n];
+            olds = new byte[n][];
+            news = new byte[n][];
+            for (int r = 0; r < n; r++) {
+                offsets[r] = in.readInt();
+                olds[r] = new byte[in.readInt()];
+                in.readFully(olds[r]);
+                news[r] = new byte[olds[r].length];
+                in.readFully(news[r]);
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeByte(type);
+            out.writeInt(tableId);
+            out.writeInt(pgNo);
+            out.writeInt(offsets.length);
+            for (int r = 0; r < offsets.length; r++) {
+                out.writeInt(offsets[r]);
+                out.writeInt(olds[r].length);
+                out.write(olds[r]);
+                out.write(news[r]);
+            }
+        }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        PageId pid() throws IOException {
+            return pageId(type, tableId, pgNo);
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        /** Redo (or undo) the update on the given page data. */
+        void apply(byte[] data, boolean redo) {
+            for (int r = 0; r < offsets.length; r++) {
+                byte[] b = redo ? news[r] : olds[r];
+                System.arraycopy(b, 0, data, offsets[r], b.length);
+            }
+        }
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** Reads the log at any LSN through a buffer.  Records still in the
+        log buffer must be written first (see flushBuffer).  Reading past
+        either end of the log throws EOFException, like RandomAccessFile.
+    */
+    class LogReader {
+        private final ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private long bufStart = 0;
+        private long pos;
+
+        LogReader(long pos) {
+            this.pos = pos;
+            buf.limit(0);
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        long getFilePointer() {
+            return pos;
+        }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+        void skip(int n) {
+            pos += n;
         }
-        return newPage;
 
+        void seek(long pos) {
+            this.pos = pos;
+        }
+
+        // make the n bytes at pos available in buf, at index pos - bufStart
+        private int fill(int n) throws IOException {
+            if (pos < bufStart || pos + n > bufStart + buf.limit()) {
+                // a backward scan wants the bytes before pos next
+                long start = pos < bufStart
+                    ? Math.max(segments.start(), pos + n - buf.capacity()) : pos;
+                if (pos < start)
+                    throw new EOFException();
+                buf.clear();
+                bufStart = start;
+                while (buf.position() < pos - start + n) {
+                    if (segments.read(buf, bufStart + buf.position()) < 0)
+                        throw new EOFException();
+                }
+                buf.flip();
+            }
+            int i = (int) (pos - bufStart);
+            pos += n;
+            return i;
+        }
+
+        int readByte() throws IOException {
+            return buf.get(fill(1));
+        }
+
+        int readInt() throws IOException {
+            return buf.getInt(fill(INT_SIZE));
+        }
+
+        long readLong() throws IOException {
+            return buf.getLong(fill(LONG_SIZE));
+        }
+
+        void readFully(byte[] b) throws IOException {
+            if (b.length > buf.capacity()) {
+                ByteBuffer bb = ByteBuffer.wrap(b);
+                while (bb.hasRemaining()) {
+                    if (segments.read(bb, pos + bb.position()) < 0)
+                        throw new EOFException();
+                }
+                pos += b.length;
+                return;
+            }
+            int i = fill(b.length);
+            buf.position(i);
+            buf.get(b);
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -323,160 +850,160 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
+        out.writeByte(BEGIN_RECORD);
         
-        raf.writeLong(tid.getId());
+        out.writeLong(tid.getId());
+        out.writeLong(chain(tid.getId()));
         
-        raf.writeLong(currentOffset);
+        out.writeLong(currentOffset);
         
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        endRecord();
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  No page is
+        flushed: the record lists the dirty-page table instead, and the
+        buffer pool writes the pages in the background.
+    */
     public void logCheckpoint() throws IOException {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
+                writeCheckpointRecord();
                 force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                
-                raf.writeLong(-1); //no tid , but leave space for convenience
-                
+            }
+        }
 
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                    
-                }
+        logTruncate();
+    }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+    /** Write a checkpoint record without flushing the buffer pool, so
+        that recovery starts redo after it.  Called by the buffer pool's
+        background writer once every page updated by a log record so far
+        is on disk, except pages still being updated by running
+        transactions, which are undone or logged again at commit.
+    */
+    void logRedoPoint() throws IOException {
+        synchronized (Database.getBufferPool()) {
+            synchronized (this) {
+                preAppend();
+                if (currentOffset == checkpointEnd)
+                    return; // nothing was logged since the last checkpoint
+                writeCheckpointRecord();
+                force();
             }
         }
+    }
 
-        logTruncate();
+    // write a CHECKPOINT record listing the active transactions and the
+    // dirty pages, and point the start of the log at it; the caller holds
+    // the buffer pool monitor, so no page is logged meanwhile
+    private void writeCheckpointRecord() throws IOException {
+        long startCpOffset = currentOffset;
+        Set<Long> keys = tidToFirstLogRecord.keySet();
+        Iterator<Long> els = keys.iterator();
+        out.writeByte(CHECKPOINT_RECORD);
+        
+        out.writeLong(-1); //no tid , but leave space for convenience
+        out.writeLong(NO_PREV_RECORD);
+        
+
+        //write list of outstanding transactions
+        out.writeInt(keys.size());
+        
+        while (els.hasNext()) {
+            Long key = els.next();
+            out.writeLong(key);
+            
+            long first = tidToFirstLogRecord.get(key);
+            out.writeLong(first);
+            Long last = tidToLastLogRecord.get(key);
+            out.writeLong(last != null ? last : first);
+            
+        }
+
+        //write the dirty-page table
+        Map<PageId,Long> dirtyPages = Database.getBufferPool().dirtyPageTable();
+        out.writeInt(dirtyPages.size());
+        for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+            PageId pid = e.getKey();
+            out.writeByte(pageType(pid));
+            out.writeInt(pid.getTableId());
+            out.writeInt(pid.getPageNumber());
+            out.writeLong(e.getValue());
+        }
+        out.writeLong(startCpOffset);
+        endRecord();
+        checkpointEnd = currentOffset;
+        lastCheckpointMillis = System.currentTimeMillis();
+        // redo starts here, so pages are imaged in full again
+        loggedImages.clear();
+
+        //once the CP is written, make sure the CP location in the
+        // control file is updated
+        flushBuffer();
+        writeControl(startCpOffset);
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption: delete the segments before the oldest record that
+        recovery may still need. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        flushBuffer();
+        LogReader in = new LogReader(segments.start());
+        long cpLoc = readControl();
 
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        in.seek(cpLoc);
+        int cpType = in.readByte();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
+        in.readLong();
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-            int numOutstanding = raf.readInt();
+        int numOutstanding = in.readInt();
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = in.readLong();
+            long firstLogRecord = in.readLong();
+            in.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        // redo starts at the oldest record of a dirty page
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            in.readByte();
+            in.readInt();
+            in.readInt();
+            minLogRecord = Math.min(minLogRecord, in.readLong());
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        // we can truncate everything before minLogRecord
+        int deleted = segments.truncateBefore(minLogRecord);
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + " DELETED SEGMENTS: " + deleted);
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** @return the LSN after the last record appended to the log */
+    public synchronized long getLogEnd() {
+        return currentLsn();
+    }
 
-        currentOffset = raf.getFilePointer(); 
-        //print();
+    /** @return the number of segment files the log is stored in */
+    public int getNumSegments() {
+        return segments.numSegments();
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -485,6 +1012,11 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        Pages the buffer pool wrote to disk before the transaction
+        finished (see BufferPool#evictPage) are restored here too, since
+        each of them has an update record in the log.  Each restored
+        page is logged as a compensation record of the transaction.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
@@ -493,56 +1025,87 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
-                long begin = tidToFirstLogRecord.get(tid.getId());
-                raf.seek(raf.length()-LONG_SIZE);
-                long curLoca = raf.readLong(); 
-                while(curLoca>begin) {
-                	raf.seek(curLoca);
-            		int tp = raf.readInt();
-            		long currenttid = raf.readLong();
-            		if(tp == UPDATE_RECORD && currenttid == tid.getId()) {
-            			Page p = this.readPageData(raf);
-            			Database.getBufferPool().discardPage(p.getId());
-            			Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
-            			p.markDirty(false, null);
-            		}
-
-            		raf.seek(curLoca-LONG_SIZE);
-            		curLoca = raf.readLong();
-                }
-                raf.seek(currentOffset);
+                rollbackhelper(tid.getId());
+                Database.getBufferPool().stolenPagesUndone(tid);
             }
         }
     }
     
+    /** Undo the update records of the transaction with the given id,
+        following its chain of records back from its last one, and log
+        the restored pages.
+    */
     public void rollbackhelper(long tid)
             throws NoSuchElementException, IOException {
             synchronized (Database.getBufferPool()) {
                 synchronized(this) {
                     preAppend();
                     // some code goes here
-                    long begin = tidToFirstLogRecord.get(tid);
-                    raf.seek(raf.length()-LONG_SIZE);
-                    long curLoca = raf.readLong(); 
-                    while(curLoca>begin) {
-                    	raf.seek(curLoca);
-                		int tp = raf.readInt();
-                		long currenttid = raf.readLong();
-                		if(tp == UPDATE_RECORD && currenttid == tid) {
-                			Page p = this.readPageData(raf);
-                			Database.getBufferPool().discardPage(p.getId());
-                			Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
-                			p.markDirty(false, null);
-                		}
-
-                		raf.seek(curLoca-LONG_SIZE);
-                		curLoca = raf.readLong();
+                    flushBuffer();
+                    Long last = tidToLastLogRecord.get(tid);
+                    if (last == null)
+                        return; // nothing logged
+                    Map<PageId,PageImage> current = new HashMap<PageId,PageImage>();
+                    Map<PageId,PageImage> restored = undo(Collections.singleton(last), current);
+                    for (Map.Entry<PageId,PageImage> e : restored.entrySet()) {
+                        PageImage img = e.getValue();
+                        logUpdate(tid, img.type, e.getKey(), current.get(e.getKey()).data, img.data);
+                        Database.getBufferPool().discardPage(e.getKey());
+                        img.write();
                     }
-                    raf.seek(currentOffset);
                 }
             }
         }
 
+    /** Undo the updates of some transactions, without writing them, by
+        following their chains of records back from the given last
+        records.  The records of all chains are undone in one pass, from
+        the largest LSN down.
+        @param current if not null, receives the image of each page
+            before it was undone
+        @return the undone image of each page
+    */
+    private Map<PageId,PageImage> undo(Collection<Long> lastRecords,
+            Map<PageId,PageImage> current) throws IOException {
+        Map<PageId,PageImage> pages = new HashMap<PageId,PageImage>();
+        long start = segments.start();
+        PriorityQueue<Long> toUndo = new PriorityQueue<Long>(
+                Math.max(1, lastRecords.size()), Collections.reverseOrder());
+        for (long lsn : lastRecords) {
+            if (lsn >= start)
+                toUndo.add(lsn);
+        }
+        LogReader in = new LogReader(start);
+        while (!toUndo.isEmpty()) {
+        	in.seek(toUndo.poll());
+    		int tp = in.readByte();
+    		in.readLong();
+    		long prev = in.readLong();
+    		if(tp == UPDATE_RECORD) {
+    			PageImage before = readPageData(in);
+    			PageId pid = before.pid();
+    			if (current != null && !pages.containsKey(pid))
+    				current.put(pid, PageImage.read(before.type, before.tableId, before.pgNo));
+    			pages.put(pid, before);
+    		} else if (tp == DELTA_RECORD) {
+    			PageDelta d = new PageDelta(in);
+    			PageId pid = d.pid();
+    			PageImage img = pages.get(pid);
+    			if (img == null) {
+    				img = PageImage.read(d.type, d.tableId, d.pgNo);
+    				if (current != null)
+    					current.put(pid, new PageImage(d.type, d.tableId, d.pgNo, img.data.clone()));
+    				pages.put(pid, img);
+    			}
+    			d.apply(img.data, false);
+    		}
+
+    		if (prev >= start)
+    			toUndo.add(prev);
+        }
+        return pages;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -550,7 +1113,8 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            segments.close();
+            control.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -566,149 +1130,380 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+
+                // analysis: the losers with their last records, and the
+                // records to redo on each page
+                Map<Long,Long> losers = new HashMap<Long,Long>();
+                LinkedHashMap<PageId,ArrayList<Long>> dirtyPages =
+                    new LinkedHashMap<PageId,ArrayList<Long>>();
+                LogReader in = new LogReader(segments.start());
+                long end = segments.start();
+                // records before the checkpoint are redone only on the
+                // pages of its dirty-page table
+                long cp = end;
+                Map<PageId,Long> checkpointDirty = new HashMap<PageId,Long>();
                 try {
-                		raf.seek(0);
-                		long offset = raf.readLong();
-                		Map<Long, Long> losers = new HashMap<Long, Long>();
-                		if(offset != -1) {
-                			raf.seek(offset);
-                			raf.readInt();
-                			raf.readLong();
-                			int num = raf.readInt();
-                			long k1,v1;
-                			for(int i = 0; i < num; i++) {
-                				k1 = raf.readLong();
-                				v1 = raf.readLong();
-                				losers.put(k1, v1);
-                				tidToFirstLogRecord.put(k1, v1);
-                			}
-                			raf.readLong();
-                			//raf.readLong();
-                			/*for(Long tid : losers.keySet())
-                				System.out.print(tid + " ");
-                			System.out.println("");*/
-                		}
-                		offset = raf.getFilePointer();
-                		try {
-                			while(true) {
-                				int tp = raf.readInt();
-                				long currenttid = raf.readLong();
-                				if(tp == UPDATE_RECORD) {
-                					this.readPageData(raf);
-                					Page p = this.readPageData(raf);
-                        			Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
-                        			Database.getBufferPool().discardPage(p.getId());
-                        			//if(!losers.containsKey(currenttid))
-                        			//	losers.put(currenttid, raf.readLong());
-                        			//else
-                        			raf.readLong();
-                				
-                				}
-                				else if(tp == COMMIT_RECORD) {
-                					if(losers.containsKey(currenttid))
-                						losers.remove(currenttid);
-                					raf.readLong();
-                				}
-                				else if(tp == ABORT_RECORD) {
-                					currentOffset = raf.getFilePointer(); 
-                					rollbackhelper(currenttid);
-                					losers.remove(currenttid);
-                					raf.readLong();
-                				}
-                				else if(tp == BEGIN_RECORD) {
-                					currentOffset = raf.readLong();
-                					if(!losers.containsKey(currenttid))
-                						losers.put(currenttid, currentOffset);
-                					if(!tidToFirstLogRecord.containsKey(currenttid))
-                						tidToFirstLogRecord.put(currenttid, currentOffset);
-                				}
-                				//else {
-                					//if(!losers.containsKey(currenttid))
-                					//	losers.put(currenttid, raf.readLong());
-                					//else
-                				//		raf.readLong();
-                				//}
-                					
-                				
-                			}
-                		}catch(EOFException e) {}
-                		raf.seek(offset);
-                		try {
-                			/*while(true) {
-                				int tp = raf.readInt();
-                				long currenttid = raf.readLong();
-                				if(tp == UPDATE_RECORD) {
-                					if(losers.containsKey(currenttid)) {
-                						Page p = this.readPageData(raf);
-                            			Database.getBufferPool().discardPage(p.getId());
-                            			Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
-                            			//p.markDirty(false, null);
-                            			this.readPageData(raf);
-                            			raf.readLong();
-                            			
-                					}
-                					else {
-                						this.readPageData(raf);
-                    					Page p = this.readPageData(raf);
-                            			Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
-                            			raf.readLong();
-                            			
-                					}
-                				
-                				}
-                				else if(tp == CHECKPOINT_RECORD) {
-                					int num = raf.readInt();
-                        			for(int i = 0; i < num; i++) {
-                        				raf.readLong();
-                        				raf.readLong();
-                        			}
-                        			raf.readLong();
-                				}
-                				
-                				else {
-                					raf.readLong();
-                				}
-                					
-                				
-                			
-
-                			}/*
-                		}catch(EOFException e) {}
-                		/*
-                		for(Long tid : losers.keySet()) {
-                			raf.seek(losers.get(tid));
-                			try {
-                				while(true) {
-                					int tp = raf.readInt();
-                            		long currenttid = raf.readLong();
-                            		if(tp == UPDATE_RECORD && currenttid == tid) {
-                            			
-                            		}
-                            		else if(tp == CHECKPOINT_RECORD) {
-                            			
-                            		}
-                            		raf.readLong();
-                				}
-                			}catch(EOFException e) {}
-                		}*/
-                		for(Long tid : losers.keySet()) {
-                			rollbackhelper(tid);
-                		}
-                }catch(EOFException e) {}
-                
-                }catch(EOFException e) {}
-                
+                    long cpLoc = readControl();
+                    if (cpLoc != NO_CHECKPOINT_ID) {
+                        cp = cpLoc;
+                        in.seek(cp);
+                        in.readByte();
+                        in.readLong();
+                        in.readLong();
+                        int num = in.readInt();
+                        for (int i = 0; i < num; i++) {
+                            long tid = in.readLong();
+                            in.readLong();
+                            losers.put(tid, in.readLong());
+                        }
+                        num = in.readInt();
+                        for (int i = 0; i < num; i++) {
+                            int type = in.readByte();
+                            PageId pid = pageId(type, in.readInt(), in.readInt());
+                            checkpointDirty.put(pid, in.readLong());
+                        }
+                        in.readLong();
+                        end = in.getFilePointer();
+                        if (!checkpointDirty.isEmpty()) {
+                            end = Collections.min(checkpointDirty.values());
+                            in.seek(end);
+                        }
+                    }
+                    while (true) {
+                        long start = in.getFilePointer();
+                        int tp = in.readByte();
+                        long tid = in.readLong();
+                        in.readLong();
+                        PageId pid = null;
+                        switch (tp) {
+                        case UPDATE_RECORD:
+                            skipPageData(in);
+                            pid = readPageData(in).pid();
+                            break;
+                        case DELTA_RECORD:
+                            pid = new PageDelta(in).pid();
+                            break;
+                        case CHECKPOINT_RECORD:
+                            in.skip(in.readInt() * 3 * LONG_SIZE);
+                            in.skip(in.readInt() * (1 + 2 * INT_SIZE + LONG_SIZE));
+                            break;
+                        case BEGIN_RECORD:
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            break;
+                        default:
+                            throw new EOFException(); // a torn record
+                        }
+                        if (in.readLong() != start)
+                            break; // a torn record
+                        end = in.getFilePointer();
+
+                        if (tp == COMMIT_RECORD || tp == ABORT_RECORD) {
+                            losers.remove(tid);
+                        } else if (tp != CHECKPOINT_RECORD) {
+                            losers.put(tid, start);
+                        }
+                        if (pid != null && start < cp) {
+                            Long recOffset = checkpointDirty.get(pid);
+                            if (recOffset == null || start < recOffset)
+                                pid = null; // on disk before the checkpoint
+                        }
+                        if (pid != null) {
+                            ArrayList<Long> records = dirtyPages.get(pid);
+                            if (records == null || tp == UPDATE_RECORD) {
+                                // a full image supersedes earlier records
+                                records = new ArrayList<Long>();
+                                dirtyPages.put(pid, records);
+                            }
+                            records.add(start);
+                        }
+                    }
+                } catch (EOFException e) {
+                    // the end of the log
+                }
+                flushBuffer();
+                if (segments.end() > end)
+                    segments.truncateAfter(end);
+                fileEnd = segments.end();
+                currentOffset = fileEnd;
+
+                // redo: repeat history on every page of the dirty-page table
+                for (PageId pid : dirtyPages.keySet())
+                    Database.getBufferPool().discardPage(pid);
+                invalidateFreeSpaceMaps(dirtyPages.keySet());
+                redo(new ArrayList<ArrayList<Long>>(dirtyPages.values()));
+
+                // undo: roll back all losers along their chains
+                if (!losers.isEmpty()) {
+                    Map<PageId,PageImage> undone = undo(losers.values(), null);
+                    invalidateFreeSpaceMaps(undone.keySet());
+                    for (Map.Entry<PageId,PageImage> e : undone.entrySet()) {
+                        Database.getBufferPool().discardPage(e.getKey());
+                        e.getValue().write();
+                    }
+                }
+
+                // later recoveries start after the undone losers
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+                preAppend();
+                writeCheckpointRecord();
+                forceNow();
             }
          }
     }
 
+    /**
+     * Invalidate the free space maps of the heap files of pages that
+     * recovery is about to rewrite, so that each is rebuilt when its table
+     * is next used rather than now; other tables are not opened.
+     */
+    private void invalidateFreeSpaceMaps(Set<PageId> pages) throws IOException {
+        HashSet<Integer> tables = new HashSet<Integer>();
+        for (PageId pid : pages) {
+            if (pid instanceof HeapPageId && tables.add(pid.getTableId()))
+                ((HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId()))
+                        .invalidateFreeSpaceMap();
+        }
+    }
+
+    /** Rebuild each page from its records (an UPDATE, if any, followed
+        by DELTAs) and write it once, with REDO_THREADS threads.  A page
+        that is already current is found by comparing it with the
+        rebuilt image, and is not written.  That costs one read of each
+        page in the dirty-page table, which analysis bounds: it holds
+        the pages logged after the last checkpoint and the pages that
+        checkpoint recorded as dirty, so the checkpoint policy bounds
+        the reads as it bounds the log to scan.  The threads only read
+        the log and write pages, so they need neither the buffer pool
+        nor the log monitor held by the caller.
+    */
+    private void redo(final List<ArrayList<Long>> pages) throws IOException {
+        redoReads.set(0);
+        redoWrites.set(0);
+        final AtomicInteger next = new AtomicInteger();
+        final Exception[] failure = new Exception[1];
+        Thread[] threads = new Thread[Math.min(REDO_THREADS, pages.size())];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    LogReader in = new LogReader(0);
+                    int i;
+                    try {
+                        while ((i = next.getAndIncrement()) < pages.size())
+                            redoPage(in, pages.get(i));
+                    } catch (Exception e) {
+                        synchronized (failure) {
+                            if (failure[0] == null)
+                                failure[0] = e;
+                        }
+                        next.set(pages.size());
+                    }
+                }
+            }, "redo-" + t);
+            threads[t].start();
+        }
+        for (Thread th : threads) {
+            try {
+                th.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted during redo");
+            }
+        }
+        if (failure[0] instanceof IOException)
+            throw (IOException) failure[0];
+        if (failure[0] != null)
+            throw new RuntimeException(failure[0]);
+    }
+
+    private void redoPage(LogReader in, List<Long> records) throws IOException {
+        PageImage img = null;
+        byte[] onDisk = null; // the page on disk, if a delta needed it
+        for (long offset : records) {
+            in.seek(offset);
+            int tp = in.readByte();
+            in.readLong();
+            in.readLong();
+            if (tp == UPDATE_RECORD) {
+                skipPageData(in);
+                img = readPageData(in);
+            } else {
+                PageDelta d = new PageDelta(in);
+                if (img == null) {
+                    img = PageImage.read(d.type, d.tableId, d.pgNo);
+                    redoReads.incrementAndGet();
+                    onDisk = img.data.clone();
+                }
+                d.apply(img.data, true);
+            }
+        }
+        if (onDisk == null)
+            redoReads.incrementAndGet();
+        if (onDisk != null ? Arrays.equals(onDisk, img.data) : img.isOnDisk())
+            return;
+        img.write();
+        redoWrites.incrementAndGet();
+    }
+
+    /** @return the number of page images kept to log pages as deltas */
+    public synchronized int getLoggedImageCount() {
+        return loggedImages.size();
+    }
+
+    /** @return the number of pages the last recovery read in redo */
+    public int getRedoReadCount() {
+        return redoReads.get();
+    }
+
+    /** @return the number of pages the last recovery wrote in redo */
+    public int getRedoWriteCount() {
+        return redoWrites.get();
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force the log to disk, up to every record appended so far.  This
+        does not wait for a group of committers to gather: it is used for
+        write-ahead logging of page writes, which callers do while holding
+        the buffer pool.  Committers waiting for the same records are
+        released too.
+    */
+    public void force() throws IOException {
+        forceNow();
+    }
+
+    /**
+     * Configure group commit.
+     *
+     * @param flushIntervalMillis how long the flusher waits for more
+     *            committers to join a force, 0 to force at once
+     * @param batchSize the number of waiting committers that starts a force
+     *            without waiting out the interval
+     */
+    public synchronized void setGroupCommit(long flushIntervalMillis, int batchSize) {
+        this.flushIntervalMillis = Math.max(0, flushIntervalMillis);
+        this.flushBatchSize = Math.max(1, batchSize);
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public synchronized long getForceCount() {
+        return forces;
+    }
+
+    private synchronized void forceNow() throws IOException {
+        long seq = appendSeq;
+        flushBuffer();
+        segments.force();
+        if (controlUnforced) {
+            controlUnforced = false;
+            control.getChannel().force(true);
+        }
+        forces++;
+        markDurable(seq);
+    }
+
+    // protected by this
+    private void markDurable(long seq) {
+        if (seq > durableSeq) {
+            durableSeq = seq;
+            notifyAll();
+        }
+    }
+
+    /** Wait until the record numbered seq has been forced. */
+    private void waitDurable(long seq) throws IOException {
+        synchronized (this) {
+            if (seq <= durableSeq)
+                return;
+            if (seq > requestedSeq)
+                requestedSeq = seq;
+            if (flusher == null) {
+                flusher = new Thread(new Runnable() {
+                    public void run() {
+                        runFlusher();
+                    }
+                }, "simpledb-log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            waiters++;
+            notifyAll();
+            try {
+                while (durableSeq < seq) {
+                    if (flusher == null) {
+                        // the flusher failed
+                        forceNow();
+                        break;
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                forceNow();
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    private void runFlusher() {
+        while (true) {
+            long seq;
+            List<FileChannel> channels;
+            synchronized (this) {
+                try {
+                    long idleSince = System.currentTimeMillis();
+                    while (requestedSeq <= durableSeq) {
+                        long idle = System.currentTimeMillis() - idleSince;
+                        if (idle >= FLUSHER_IDLE_MILLIS) {
+                            flusher = null;
+                            return;
+                        }
+                        wait(FLUSHER_IDLE_MILLIS - idle);
+                    }
+                    // give more committers a chance to join this force
+                    long deadline = System.currentTimeMillis() + flushIntervalMillis;
+                    long left;
+                    while (waiters < flushBatchSize
+                            && (left = deadline - System.currentTimeMillis()) > 0)
+                        wait(left);
+                } catch (InterruptedException e) {
+                    // force now
+                }
+                seq = appendSeq;
+                try {
+                    flushBuffer();
+                    channels = segments.takeUnforced();
+                    if (controlUnforced) {
+                        controlUnforced = false;
+                        channels.add(control.getChannel());
+                    }
+                } catch (IOException e) {
+                    flusher = null;
+                    notifyAll();
+                    return;
+                }
+            }
+            // appends may go on while the log is forced
+            try {
+                for (FileChannel channel : channels)
+                    LogSegments.force(channel);
+            } catch (IOException e) {
+                // failed; let the waiters force it themselves
+                synchronized (this) {
+                    flusher = null;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                forces++;
+                markDurable(seq);
+            }
+        }
     }
 
 }
@@ -0,0 +1,205 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * LogSegments stores the log as a sequence of segment files next to the
+ * log's control file, named "&lt;log&gt;.&lt;lsn&gt;" after the log sequence number
+ * (LSN) of their first byte. An LSN is the position of a byte in the log
+ * since the log was created; it never changes, so the log is truncated by
+ * deleting the segments that end before the oldest LSN still needed,
+ * without copying anything. A new segment is started once the last one
+ * holds segmentSize bytes; a record may span two segments.
+ * <p>
+ * Reads and writes are positional. Callers serialize writes, truncation
+ * and reset (LogFile holds its monitor); reads may run concurrently with
+ * each other.
+ *
+ * @see LogFile
+ */
+class LogSegments {
+
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+    // first LSN of each segment -> its file
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+    // segments written since they were last forced
+    private final Set<FileChannel> unforced = new HashSet<FileChannel>();
+    private long end;
+
+    /**
+     * Open the segments of the log whose control file is f.
+     *
+     * @param segmentSize the bytes after which a new segment is started
+     */
+    LogSegments(File f, long segmentSize) throws IOException {
+        File abs = f.getAbsoluteFile();
+        this.dir = abs.getParentFile();
+        this.prefix = abs.getName() + ".";
+        this.segmentSize = segmentSize;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File seg : files) {
+                long start = segmentStart(seg);
+                if (start >= 0)
+                    segments.put(start, new RandomAccessFile(seg, "rw"));
+            }
+        }
+        if (segments.isEmpty()) {
+            end = 0;
+        } else {
+            Map.Entry<Long, RandomAccessFile> last = segments.lastEntry();
+            end = last.getKey() + last.getValue().length();
+        }
+    }
+
+    // the first LSN of a segment file, or -1 if it is not one of ours
+    private long segmentStart(File seg) {
+        String name = seg.getName();
+        if (!name.startsWith(prefix) || name.length() == prefix.length())
+            return -1;
+        for (int i = prefix.length(); i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i)))
+                return -1;
+        }
+        return Long.parseLong(name.substring(prefix.length()));
+    }
+
+    private File segmentFile(long start) {
+        return new File(dir, prefix + start);
+    }
+
+    /** @return the LSN of the first byte still stored */
+    synchronized long start() {
+        return segments.isEmpty() ? end : segments.firstKey();
+    }
+
+    /** @return the LSN after the last byte stored */
+    synchronized long end() {
+        return end;
+    }
+
+    /** @return the number of segment files */
+    synchronized int numSegments() {
+        return segments.size();
+    }
+
+    /** Write len bytes of b at the end of the log. */
+    synchronized void append(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            Map.Entry<Long, RandomAccessFile> last = segments.lastEntry();
+            if (last == null || end - last.getKey() >= segmentSize) {
+                RandomAccessFile seg = new RandomAccessFile(segmentFile(end), "rw");
+                seg.setLength(0);
+                segments.put(end, seg);
+                last = segments.lastEntry();
+            }
+            long pos = end - last.getKey();
+            int n = (int) Math.min(len, segmentSize - pos);
+            FileChannel ch = last.getValue().getChannel();
+            ByteBuffer bb = ByteBuffer.wrap(b, off, n);
+            while (bb.hasRemaining())
+                ch.write(bb, pos + (bb.position() - off));
+            unforced.add(ch);
+            end += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Read into dst from the log at lsn, up to the end of dst or of the
+     * segment holding lsn.
+     *
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    int read(ByteBuffer dst, long lsn) throws IOException {
+        FileChannel ch;
+        long pos;
+        synchronized (this) {
+            Map.Entry<Long, RandomAccessFile> seg = segments.floorEntry(lsn);
+            if (seg == null || lsn >= end)
+                return -1;
+            ch = seg.getValue().getChannel();
+            pos = lsn - seg.getKey();
+        }
+        return ch.read(dst, pos);
+    }
+
+    /** Force every segment written since the last force. */
+    void force() throws IOException {
+        for (FileChannel ch : takeUnforced())
+            force(ch);
+    }
+
+    /** @return the segments to force, which are no longer tracked */
+    synchronized List<FileChannel> takeUnforced() {
+        List<FileChannel> chs = new ArrayList<FileChannel>(unforced);
+        unforced.clear();
+        return chs;
+    }
+
+    /** Force one segment; a segment deleted meanwhile needs no force. */
+    static void force(FileChannel ch) throws IOException {
+        try {
+            ch.force(true);
+        } catch (ClosedChannelException e) {
+            // truncated, which only happens to segments already forced
+        }
+    }
+
+    /** Delete the segments that end at or before lsn, except the last. */
+    synchronized int truncateBefore(long lsn) throws IOException {
+        int deleted = 0;
+        while (segments.size() > 1) {
+            long start = segments.firstKey();
+            long next = segments.higherKey(start);
+            if (next > lsn)
+                break;
+            delete(start);
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /** Discard the log from lsn on, such as a torn record at its end. */
+    synchronized void truncateAfter(long lsn) throws IOException {
+        while (segments.size() > 1 && segments.lastKey() >= lsn)
+            delete(segments.lastKey());
+        Map.Entry<Long, RandomAccessFile> last = segments.lastEntry();
+        if (last != null) {
+            last.getValue().setLength(Math.max(lsn - last.getKey(), 0));
+            end = last.getKey() + last.getValue().length();
+        }
+    }
+
+    /** Delete every segment; the log goes on from its current end. */
+    synchronized void reset() throws IOException {
+        while (!segments.isEmpty())
+            delete(segments.firstKey());
+    }
+
+    private void delete(long start) throws IOException {
+        RandomAccessFile seg = segments.remove(start);
+        unforced.remove(seg.getChannel());
+        seg.close();
+        segmentFile(start).delete();
+    }
+
+    synchronized void close() throws IOException {
+        for (RandomAccessFile seg : segments.values())
+            seg.close();
+    }
+}
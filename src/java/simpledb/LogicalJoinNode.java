@@ -23,6 +23,9 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The join algorithm chosen by the optimizer (null if none was chosen) */
+    public JoinOptimizer.JoinAlgorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
@@ -6,8 +6,13 @@ import java.util.NoSuchElementException;
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
  * <code>open</code> and <code>readNext</code>.
+ * <p>
+ * Operators also return their tuples in batches through
+ * <code>nextBatch</code>, by default built from <code>fetchNext</code>;
+ * operators that can process whole batches override
+ * <code>fetchNextBatch</code>.
  */
-public abstract class Operator implements OpIterator {
+public abstract class Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -44,6 +49,45 @@ public abstract class Operator implements OpIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    public TupleBatch nextBatch(int maxRows) throws DbException,
+            TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+        if (next == null)
+            return fetchNextBatch(maxRows);
+
+        // the tuple buffered by hasNext comes first
+        TupleBatch b = new TupleBatch(getTupleDesc(), maxRows);
+        b.add(next);
+        next = null;
+        Tuple t;
+        while (!b.isFull() && (t = fetchNext()) != null)
+            b.add(t);
+        return b;
+    }
+
+    /**
+     * Returns the next batch of tuples, or null if the iteration is
+     * finished. Operator uses this method to implement
+     * <code>nextBatch</code>; by default it collects tuples from
+     * <code>fetchNext</code>.
+     *
+     * @param maxRows the most rows the batch may hold
+     * @return a batch with at least one selected row, or null if the
+     *         iteration is finished.
+     */
+    protected TupleBatch fetchNextBatch(int maxRows) throws DbException,
+            TransactionAbortedException {
+        TupleBatch b = null;
+        Tuple t;
+        while ((b == null || !b.isFull()) && (t = fetchNext()) != null) {
+            if (b == null)
+                b = new TupleBatch(getTupleDesc(), maxRows);
+            b.add(t);
+        }
+        return b;
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
@@ -1,24 +1,57 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * It is an external merge sort: child tuples are collected in memory until
+ * the memory budget is reached, then sorted and written to a temporary file
+ * as a sorted run. The runs are combined by a k-way merge using a heap, in
+ * several passes if there are more than {@link #MERGE_FAN_IN} of them. If
+ * the child fits in memory, it is sorted in memory and nothing is written.
+ * <p>
+ * The tuples may be ordered on several fields, each ascending or
+ * descending. With a limit of N, only the first N tuples of the order are
+ * returned; if N fits in memory they are kept in a bounded heap and the
+ * child is never spilled. Rewinding re-reads the sorted result (in memory
+ * or from its runs) instead of sorting the child again.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The default memory budget, in tuples */
+    public static final int DEFAULT_MEMORY_TUPLES = 20000;
+
+    /** The most runs merged together in one pass */
+    public static final int MERGE_FAN_IN = 64;
+
+    /** Limit meaning that every tuple is returned */
+    public static final int NO_LIMIT = -1;
+
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private int[] orderByFields;
+    private boolean[] ascs;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private final int limit;
+    private final int memoryTuples;
+    private final TupleComparator comparator;
+
+    // the sorted result when it fits in memory, otherwise null
+    private transient ArrayList<Tuple> sorted;
+    private transient Iterator<Tuple> it;
+    // the sorted runs on disk, merged on the fly; null if sorted in memory
+    private transient ArrayList<TupleFile> runs;
+    private transient PriorityQueue<RunHead> heads;
+    private transient ArrayList<TupleFile.Reader> readers;
+    private transient int returned;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,28 +60,76 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node ordering on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to sort on, most significant first.
+     * @param ascs
+     *            for each field, true if its order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, OpIterator child) {
+        this(orderbyFields, ascs, child, NO_LIMIT, DEFAULT_MEMORY_TUPLES);
+    }
+
+    /**
+     * Creates a new OrderBy node.
+     *
+     * @param orderbyFields
+     *            the fields to sort on, most significant first.
+     * @param ascs
+     *            for each field, true if its order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param limit
+     *            the number of tuples to return, or {@link #NO_LIMIT}
+     * @param memoryTuples
+     *            the number of tuples that may be held in memory
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, OpIterator child,
+            int limit, int memoryTuples) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("need one direction per ORDER BY field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.limit = limit;
+        this.memoryTuples = Math.max(1, memoryTuples);
+        this.comparator = new TupleComparator(this.orderByFields, this.ascs);
     }
-    
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return the number of tuples returned, or {@link #NO_LIMIT} */
+    public int getLimit() {
+        return limit;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -56,36 +137,210 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        boolean sortedOk = false;
+        try {
+            if (limit >= 0 && limit <= memoryTuples)
+                sortTopN();
+            else
+                sortExternal();
+            startOutput();
+            sortedOk = true;
+        } catch (IOException e) {
+            throw new DbException("could not write sorted run: " + e);
+        } finally {
+            // the runs are not left behind if the child or the disk fails
+            if (!sortedOk)
+                deleteRuns();
+        }
         super.open();
     }
 
+    /** Keep the first limit tuples of the order in a bounded heap. */
+    private void sortTopN() throws DbException, TransactionAbortedException {
+        // the root of the heap is the last of the tuples kept
+        PriorityQueue<Tuple> heap = new PriorityQueue<Tuple>(Math.max(1, limit),
+                Collections.reverseOrder(comparator));
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(t);
+            } else if (limit > 0 && comparator.compare(t, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(t);
+            }
+        }
+        sorted = new ArrayList<Tuple>(heap);
+        Collections.sort(sorted, comparator);
+        runs = null;
+    }
+
+    /** Sort in memory, or into runs on disk when the budget is exceeded. */
+    private void sortExternal() throws DbException, TransactionAbortedException,
+            IOException {
+        ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+        runs = new ArrayList<TupleFile>();
+        while (child.hasNext()) {
+            buffer.add(child.next());
+            if (buffer.size() >= memoryTuples) {
+                writeRun(buffer);
+                buffer.clear();
+            }
+        }
+        if (runs.isEmpty()) {
+            Collections.sort(buffer, comparator);
+            sorted = buffer;
+            runs = null;
+            return;
+        }
+        if (!buffer.isEmpty())
+            writeRun(buffer);
+        sorted = null;
+        // merge until the remaining runs can be merged in one pass
+        while (runs.size() > MERGE_FAN_IN) {
+            ArrayList<TupleFile> merged = new ArrayList<TupleFile>();
+            boolean mergedOk = false;
+            try {
+                for (int i = 0; i < runs.size(); i += MERGE_FAN_IN) {
+                    List<TupleFile> group = runs.subList(i, Math.min(i + MERGE_FAN_IN, runs.size()));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                        continue;
+                    }
+                    TupleFile out = new TupleFile("orderby", td);
+                    merged.add(out);
+                    startMerge(group);
+                    Tuple t;
+                    while ((t = nextMerged()) != null)
+                        out.write(t);
+                    closeReaders();
+                    out.finish();
+                    for (TupleFile f : group)
+                        f.delete();
+                }
+                mergedOk = true;
+            } finally {
+                // runs still lists the inputs of the pass; delete its outputs
+                if (!mergedOk) {
+                    for (TupleFile f : merged)
+                        f.delete();
+                }
+            }
+            runs = merged;
+        }
+    }
+
+    /** Sort buffer and write it as a new run, which is added to runs. */
+    private void writeRun(ArrayList<Tuple> buffer) throws IOException {
+        Collections.sort(buffer, comparator);
+        TupleFile run = new TupleFile("orderby", td);
+        runs.add(run);
+        for (Tuple t : buffer)
+            run.write(t);
+        run.finish();
+    }
+
+    /** The next tuple of one run in the merge heap. */
+    private static class RunHead {
+        final Tuple tuple;
+        final TupleFile.Reader reader;
+
+        RunHead(Tuple tuple, TupleFile.Reader reader) {
+            this.tuple = tuple;
+            this.reader = reader;
+        }
+    }
+
+    private void startMerge(List<TupleFile> group) throws IOException, DbException {
+        heads = new PriorityQueue<RunHead>(Math.max(1, group.size()), new Comparator<RunHead>() {
+            public int compare(RunHead a, RunHead b) {
+                return comparator.compare(a.tuple, b.tuple);
+            }
+        });
+        readers = new ArrayList<TupleFile.Reader>();
+        for (TupleFile f : group) {
+            TupleFile.Reader r = f.reader();
+            readers.add(r);
+            Tuple t = r.next();
+            if (t != null)
+                heads.add(new RunHead(t, r));
+        }
+    }
+
+    private Tuple nextMerged() throws DbException {
+        RunHead head = heads.poll();
+        if (head == null)
+            return null;
+        Tuple next = head.reader.next();
+        if (next != null)
+            heads.add(new RunHead(next, head.reader));
+        return head.tuple;
+    }
+
+    private void closeReaders() {
+        if (readers != null) {
+            for (TupleFile.Reader r : readers)
+                r.close();
+        }
+        readers = null;
+        heads = null;
+    }
+
+    private void deleteRuns() {
+        closeReaders();
+        if (runs != null) {
+            for (TupleFile f : runs)
+                f.delete();
+        }
+        runs = null;
+    }
+
+    /** Start returning the sorted result from its first tuple. */
+    private void startOutput() throws DbException {
+        returned = 0;
+        if (runs == null) {
+            it = sorted.iterator();
+            return;
+        }
+        closeReaders();
+        try {
+            startMerge(runs);
+        } catch (IOException e) {
+            throw new DbException("could not read sorted run: " + e);
+        }
+    }
+
     public void close() {
         super.close();
         it = null;
+        sorted = null;
+        deleteRuns();
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        // the sorted result is kept, in memory or in its runs
+        startOutput();
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
+        if (limit >= 0 && returned >= limit)
             return null;
+        Tuple t;
+        if (runs == null)
+            t = (it != null && it.hasNext()) ? it.next() : null;
+        else
+            t = heads == null ? null : nextMerged();
+        if (t != null)
+            returned++;
+        return t;
     }
 
     @Override
@@ -101,23 +356,33 @@ public class OrderBy extends Operator {
 }
 
 class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+    int[] fields;
+    boolean[] ascs;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    /**
+     * Compare tuples on several fields, the first field first.
+     */
+    public TupleComparator(int[] fields, boolean[] ascs) {
+        this.fields = fields;
+        this.ascs = ascs;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return ascs[i] ? 1 : -1;
+            else
+                return ascs[i] ? -1 : 1;
+        }
+        return 0;
     }
-    
+
 }
@@ -51,6 +51,12 @@ public interface Page {
     */
     public Page getBeforeImage();
 
+    /** Provide the bytes of the before image, as getPageData of
+        getBeforeImage would return them, without building the page.
+        The returned array must not be modified.
+    */
+    public byte[] getBeforeImageData();
+
     /*
      * a transaction that wrote this page just committed it.
      * copy current content to the before image.
@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * PositionalFile keeps one FileChannel open on the backing file of a DbFile
+ * and reads and writes pages at explicit offsets. Positional I/O does not
+ * use the shared file pointer, so concurrent readers and writers of
+ * different pages do not serialize on it, and a page flush costs a single
+ * write instead of an open, seek, write and close.
+ * <p>
+ * The channel is opened on first use. A channel closed under us (for
+ * example because a thread doing I/O on it was interrupted) is reopened.
+ *
+ * @see HeapFile
+ * @see BTreeFile
+ */
+class PositionalFile {
+
+    private final File f;
+    private RandomAccessFile raf;
+    private volatile FileChannel channel;
+
+    PositionalFile(File f) {
+        this.f = f;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null && ch.isOpen())
+            return ch;
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException e) {
+                        // the channel is already unusable
+                    }
+                }
+                raf = new RandomAccessFile(f, "rw");
+                channel = raf.getChannel();
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Read up to buf.length bytes starting at the given file offset.
+     *
+     * @return the number of bytes read, or -1 if offset is at or past the end
+     *         of the file
+     */
+    int read(byte[] buf, long offset) throws IOException {
+        try {
+            return readFully(channel(), buf, offset);
+        } catch (ClosedChannelException e) {
+            return readFully(channel(), buf, offset);
+        }
+    }
+
+    private static int readFully(FileChannel ch, byte[] buf, long offset) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, offset + bb.position());
+            if (n < 0)
+                break;
+        }
+        return bb.position() == 0 && buf.length > 0 ? -1 : bb.position();
+    }
+
+    /** Write all of buf at the given file offset. */
+    void write(byte[] buf, long offset) throws IOException {
+        try {
+            writeFully(channel(), buf, offset);
+        } catch (ClosedChannelException e) {
+            writeFully(channel(), buf, offset);
+        }
+    }
+
+    private static void writeFully(FileChannel ch, byte[] buf, long offset) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (bb.hasRemaining()) {
+            ch.write(bb, offset + bb.position());
+        }
+    }
+
+    /** Cut the file to the given size, through the open channel. */
+    void truncate(long size) throws IOException {
+        try {
+            channel().truncate(size);
+        } catch (ClosedChannelException e) {
+            channel().truncate(size);
+        }
+    }
+
+    /**
+     * Write buf at the end of the file. Callers appending concurrently must
+     * synchronize among themselves.
+     *
+     * @return the offset buf was written at
+     */
+    long append(byte[] buf) throws IOException {
+        long offset = f.length();
+        write(buf, offset);
+        return offset;
+    }
+}
@@ -105,6 +105,8 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
+       if (operand instanceof IntField)
+           return IntField.compare(t.getInt(fieldNum), op, ((IntField) operand).getValue());
        return t.getField(fieldNum).compare(op, operand);
     }
 
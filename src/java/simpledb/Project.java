@@ -10,7 +10,7 @@ public class Project extends Operator {
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Integer> outFieldIds;
+    private final int[] outFieldIds;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -31,7 +31,9 @@ public class Project extends Operator {
     public Project(ArrayList<Integer> fieldList, Type[] types,
             OpIterator child) {
         this.child = child;
-        outFieldIds = fieldList;
+        outFieldIds = new int[fieldList.size()];
+        for (int i = 0; i < outFieldIds.length; i++)
+            outFieldIds[i] = fieldList.get(i);
         String[] fieldAr = new String[fieldList.size()];
         TupleDesc childtd = child.getTupleDesc();
 
@@ -70,16 +72,22 @@ public class Project extends Operator {
             TransactionAbortedException, DbException {
         while (child.hasNext()) {
             Tuple t = child.next();
-            Tuple newTuple = new Tuple(td);
+            Tuple newTuple = Tuple.project(td, t, outFieldIds);
             newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
-            }
             return newTuple;
         }
         return null;
     }
 
+    /**
+     * Projects each batch of the child, sharing its columns.
+     */
+    protected TupleBatch fetchNextBatch(int maxRows)
+            throws TransactionAbortedException, DbException {
+        TupleBatch b = TupleBatch.next(child, maxRows);
+        return b == null ? null : b.project(td, outFieldIds);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
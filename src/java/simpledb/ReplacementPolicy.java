@@ -0,0 +1,44 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool discards when it is
+ * full. The BufferPool reports every page access and every page it drops,
+ * and asks the policy for a victim when it needs a free frame.
+ * <p>
+ * Implementations must be safe to call from several threads at once, and
+ * should find a victim without walking every resident page.
+ *
+ * @see BufferPool
+ * @see ClockReplacementPolicy
+ * @see TwoQueueReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Tells the policy whether a resident page may be evicted right now
+     * (for example, dirty pages may not be evicted under NO STEAL).
+     */
+    public interface EvictionFilter {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Record that the specified page was requested, either because it was
+     * found in the buffer pool or because it was just read into it.
+     */
+    public void recordAccess(PageId pid);
+
+    /**
+     * Forget the specified page, because the buffer pool dropped it without
+     * asking the policy (e.g. discardPage).
+     */
+    public void remove(PageId pid);
+
+    /**
+     * Choose a resident page to evict and stop tracking it.
+     *
+     * @param filter which of the resident pages may be chosen
+     * @return the page to evict, or null if no page can be evicted
+     */
+    public PageId chooseVictim(EvictionFilter filter);
+}
@@ -7,7 +7,7 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private TransactionId transId;
@@ -78,6 +78,20 @@ public class SeqScan implements OpIterator {
     	tabAlias = tableAlias;
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    int getTableId() {
+        return tabId;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    TransactionId getTransactionId() {
+        return transId;
+    }
+
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
@@ -113,6 +127,20 @@ public class SeqScan implements OpIterator {
         return dbFileIterator.next();
     }
 
+    /**
+     * Returns the next tuples of the table as a batch, storing int fields
+     * without decoding an IntField for each.
+     */
+    public TupleBatch nextBatch(int maxRows) throws TransactionAbortedException, DbException {
+        TupleBatch b = null;
+        while ((b == null || !b.isFull()) && dbFileIterator.hasNext()) {
+            if (b == null)
+                b = new TupleBatch(getTupleDesc(), maxRows);
+            b.add(dbFileIterator.next());
+        }
+        return b;
+    }
+
     public void close() {
         // some code goes here
     	dbFileIterator.close();
@@ -0,0 +1,301 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * SlottedPage lays out variable-length records on a page, so that strings
+ * take their real length instead of Type.STRING_LEN bytes. HeapPage uses it
+ * for tables with variable-length fields; tables of fixed-length fields keep
+ * the bitmap layout, which has no per-record overhead.
+ * <p>
+ * The format of a slotted page is, with every number an unsigned short:
+ * <ul>
+ * <li> MAGIC, which tells a slotted page from a page of the bitmap layout
+ * that tables with string fields had before,
+ * <li> the number of entries in the slot directory,
+ * <li> the offset where the record area starts, or 0 if it is empty; records
+ * are stored from the end of the page down,
+ * <li> the slot directory: the offset and length of the record of each slot,
+ * or 0 and 0 for an empty slot.
+ * </ul>
+ * A page of zeroes is an empty page; the magic is written with the first
+ * record. Pages that are neither are rejected (see check), so that a file
+ * written in the old layout is not read as garbage.
+ * <p>
+ * A record is its fields in order: an int field is its 4 bytes, a string
+ * field an unsigned short length followed by that many bytes. Deleting a
+ * record leaves a hole, which is reclaimed when an insert needs the space.
+ * Slots keep their numbers, so RecordIds stay valid.
+ * <p>
+ * The methods work on the page bytes and are not thread safe; the caller
+ * serializes writes to a page.
+ *
+ * @see HeapPage
+ */
+final class SlottedPage {
+
+    static final int HEADER_SIZE = 6;
+    /** The first unsigned short of a slotted page that is not all zeroes */
+    static final int MAGIC = 0x5350;
+    private static final int SLOTS_OFF = 2;
+    private static final int START_OFF = 4;
+    static final int SLOT_SIZE = 4;
+    /** The largest page the unsigned short offsets can address */
+    static final int MAX_PAGE_SIZE = 1 << 16;
+
+    private SlottedPage() {
+    }
+
+    /** @return true if pages of tuples of td are slotted */
+    static boolean appliesTo(TupleDesc td) {
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE)
+                return true;
+        }
+        return false;
+    }
+
+    private static int fieldSize(Type type, int strLen) {
+        return type == Type.STRING_TYPE ? 2 + strLen : type.getLen();
+    }
+
+    /** @return the size of the largest record of a tuple of td */
+    static int maxRecordSize(TupleDesc td) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            size += fieldSize(td.getFieldType(i), Type.STRING_LEN);
+        return size;
+    }
+
+    /** @return the largest number of slots a page of tuples of td can have */
+    static int maxSlots(TupleDesc td, int pageSize) {
+        int minRecord = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            minRecord += fieldSize(td.getFieldType(i), 0);
+        return (pageSize - HEADER_SIZE) / (SLOT_SIZE + Math.max(minRecord, 1));
+    }
+
+    private static int readShort(byte[] page, int off) {
+        return ((page[off] & 0xff) << 8) | (page[off + 1] & 0xff);
+    }
+
+    private static void writeShort(byte[] page, int off, int v) {
+        page[off] = (byte) (v >>> 8);
+        page[off + 1] = (byte) v;
+    }
+
+    /** @return the number of entries in the slot directory */
+    static int numSlots(byte[] page) {
+        return readShort(page, SLOTS_OFF);
+    }
+
+    /**
+     * Check that page is a slotted page: an empty page of zeroes, or a page
+     * starting with MAGIC whose slot directory points inside the page.
+     *
+     * @throws IOException if it is not, such as a page of the bitmap layout
+     */
+    static void check(byte[] page) throws IOException {
+        int size = Math.min(page.length, MAX_PAGE_SIZE);
+        if (readShort(page, 0) == 0) {
+            for (int i = 0; i < size; i++) {
+                if (page[i] != 0)
+                    throw new IOException(NOT_SLOTTED);
+            }
+            return;
+        }
+        if (readShort(page, 0) != MAGIC)
+            throw new IOException(NOT_SLOTTED);
+        int n = numSlots(page);
+        int start = recordStart(page);
+        if (HEADER_SIZE + n * SLOT_SIZE > start || start > size)
+            throw new IOException("corrupt slotted page: " + n + " slots, records from " + start);
+        for (int i = 0; i < n; i++) {
+            int off = recordOffset(page, i);
+            if (off != 0 && (off < start || off + recordLength(page, i) > size))
+                throw new IOException("corrupt slotted page: slot " + i + " at " + off);
+        }
+    }
+
+    private static final String NOT_SLOTTED = "not a slotted heap page;"
+            + " files of tables with string fields written in the older bitmap"
+            + " layout must be encoded again with HeapFileEncoder";
+
+    private static int recordStart(byte[] page) {
+        int start = readShort(page, START_OFF);
+        return start == 0 ? Math.min(page.length, MAX_PAGE_SIZE) : start;
+    }
+
+    static boolean isUsed(byte[] page, int slot) {
+        return slot >= 0 && slot < numSlots(page) && recordOffset(page, slot) != 0;
+    }
+
+    static int recordOffset(byte[] page, int slot) {
+        return readShort(page, HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    static int recordLength(byte[] page, int slot) {
+        return readShort(page, HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    /** @return the number of used slots */
+    static int numRecords(byte[] page) {
+        int n = 0;
+        for (int i = numSlots(page) - 1; i >= 0; i--) {
+            if (recordOffset(page, i) != 0)
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return the bytes free for records and slot entries, holes included
+     */
+    static int freeSpace(byte[] page) {
+        int n = numSlots(page);
+        int used = HEADER_SIZE + n * SLOT_SIZE;
+        for (int i = 0; i < n; i++)
+            used += recordLength(page, i);
+        return Math.min(page.length, MAX_PAGE_SIZE) - used;
+    }
+
+    // the first empty slot, or numSlots if there is none
+    private static int freeSlot(byte[] page) {
+        int n = numSlots(page);
+        for (int i = 0; i < n; i++) {
+            if (recordOffset(page, i) == 0)
+                return i;
+        }
+        return n;
+    }
+
+    /**
+     * @return the bytes needed to insert a record of len bytes
+     */
+    static int spaceNeeded(byte[] page, int len) {
+        return len + (freeSlot(page) == numSlots(page) ? SLOT_SIZE : 0);
+    }
+
+    /**
+     * Insert a record into the page, which must have spaceNeeded bytes of
+     * contiguous free space between the slot directory and the records (see
+     * compact).
+     *
+     * @return the slot of the record
+     */
+    static int insert(byte[] page, byte[] rec, int len) {
+        int n = numSlots(page);
+        int slot = freeSlot(page);
+        writeShort(page, 0, MAGIC);
+        if (slot == n)
+            writeShort(page, SLOTS_OFF, n + 1);
+        int off = recordStart(page) - len;
+        System.arraycopy(rec, 0, page, off, len);
+        writeShort(page, START_OFF, off);
+        writeShort(page, HEADER_SIZE + slot * SLOT_SIZE, off);
+        writeShort(page, HEADER_SIZE + slot * SLOT_SIZE + 2, len);
+        return slot;
+    }
+
+    /**
+     * @return the free space between the slot directory and the records
+     */
+    static int contiguousSpace(byte[] page) {
+        return recordStart(page) - (HEADER_SIZE + numSlots(page) * SLOT_SIZE);
+    }
+
+    /** Delete the record in a used slot and clear its bytes. */
+    static void delete(byte[] page, int slot) {
+        int off = recordOffset(page, slot);
+        Arrays.fill(page, off, off + recordLength(page, slot), (byte) 0);
+        writeShort(page, HEADER_SIZE + slot * SLOT_SIZE, 0);
+        writeShort(page, HEADER_SIZE + slot * SLOT_SIZE + 2, 0);
+        int n = numSlots(page);
+        while (n > 0 && recordOffset(page, n - 1) == 0)
+            n--;
+        writeShort(page, SLOTS_OFF, n);
+        if (n == 0)
+            writeShort(page, START_OFF, 0);
+    }
+
+    /**
+     * @return a copy of the page with its records moved together at the end,
+     *         so that all free space is contiguous; the slots are unchanged
+     */
+    static byte[] compact(byte[] page) {
+        byte[] out = new byte[page.length];
+        int n = numSlots(page);
+        System.arraycopy(page, 0, out, 0, HEADER_SIZE + n * SLOT_SIZE);
+        int end = Math.min(page.length, MAX_PAGE_SIZE);
+        for (int i = 0; i < n; i++) {
+            int off = recordOffset(page, i);
+            if (off == 0)
+                continue;
+            int len = recordLength(page, i);
+            end -= len;
+            System.arraycopy(page, off, out, end, len);
+            writeShort(out, HEADER_SIZE + i * SLOT_SIZE, end);
+        }
+        writeShort(out, START_OFF, n == 0 ? 0 : end);
+        return out;
+    }
+
+    /**
+     * @return the record of a tuple of td
+     */
+    static byte[] encode(Tuple t, TupleDesc td) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            size += fieldSize(td.getFieldType(i),
+                    f instanceof StringField ? stringLength((StringField) f) : 0);
+        }
+        byte[] rec = new byte[size];
+        int off = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                String s = ((StringField) f).getValue();
+                int len = stringLength((StringField) f);
+                writeShort(rec, off, len);
+                for (int j = 0; j < len; j++)
+                    rec[off + 2 + j] = (byte) s.charAt(j); // as writeBytes
+                off += 2 + len;
+            } else {
+                int v = ((IntField) f).getValue();
+                rec[off] = (byte) (v >>> 24);
+                rec[off + 1] = (byte) (v >>> 16);
+                rec[off + 2] = (byte) (v >>> 8);
+                rec[off + 3] = (byte) v;
+                off += 4;
+            }
+        }
+        return rec;
+    }
+
+    private static int stringLength(StringField f) {
+        return Math.min(f.getValue().length(), Type.STRING_LEN);
+    }
+
+    /**
+     * @return the offset of each field of the record at off, relative to off
+     */
+    static int[] fieldOffsets(TupleDesc td, byte[] page, int off) {
+        int[] offsets = new int[td.numFields()];
+        int pos = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = pos;
+            Type type = td.getFieldType(i);
+            pos += fieldSize(type, type == Type.STRING_TYPE ? readShort(page, off + pos) : 0);
+        }
+        return offsets;
+    }
+
+    /** @return the field of the given type stored at off */
+    static Field readField(Type type, byte[] page, int off) {
+        if (type == Type.STRING_TYPE)
+            return new StringField(new String(page, off + 2, readShort(page, off)), Type.STRING_LEN);
+        return type.parse(page, off);
+    }
+}
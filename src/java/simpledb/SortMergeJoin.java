@@ -0,0 +1,197 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin implements an equality join by sorting both children on
+ * their join fields and merging the two sorted inputs. Each child is read
+ * once; the tuples sharing a join value on both sides are combined in a
+ * cross product.
+ * <p>
+ * Each input is sorted by an {@link OrderBy} with half of the memory
+ * budget, so inputs larger than the budget are sorted externally. The
+ * merge holds only the right tuples sharing the current join value.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The default memory budget for both sorts, in tuples */
+    public static final int MEMORY_TUPLES = HashEquiJoin.MAP_SIZE;
+
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+    private final int memoryTuples;
+
+    // the sorted inputs
+    transient private OrderBy left, right;
+    // the current left tuple and the next unmatched right tuple
+    transient private Tuple lt, rt;
+    // the right tuples whose join value equals that of lt; gi is the next
+    // one to combine with lt
+    transient private ArrayList<Tuple> group;
+    transient private int gi;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be Predicate.Op.EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, MEMORY_TUPLES);
+    }
+
+    /**
+     * Constructor with an explicit memory budget.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be Predicate.Op.EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param memoryTuples
+     *            the number of tuples the two sorts may hold in memory
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2,
+            int memoryTuples) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("sort-merge join requires an equality predicate");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryTuples = memoryTuples;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    private OrderBy sorted(OpIterator child, int field) {
+        return new OrderBy(new int[] { field }, new boolean[] { true }, child,
+                OrderBy.NO_LIMIT, Math.max(1, memoryTuples / 2));
+    }
+
+    private static int compareFields(Field a, Field b) {
+        if (a.compare(Predicate.Op.LESS_THAN, b))
+            return -1;
+        if (a.compare(Predicate.Op.GREATER_THAN, b))
+            return 1;
+        return 0;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        left = sorted(child1, pred.getField1());
+        right = sorted(child2, pred.getField2());
+        left.open();
+        try {
+            right.open();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            left.close();
+            throw e;
+        }
+        group = new ArrayList<Tuple>();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (right != null)
+            right.close();
+        if (left != null)
+            left.close();
+        left = null;
+        right = null;
+        group = null;
+        lt = rt = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the sorted inputs are re-read, not sorted again
+        left.rewind();
+        right.rewind();
+        reset();
+    }
+
+    private void reset() throws DbException, TransactionAbortedException {
+        lt = null;
+        rt = right.hasNext() ? right.next() : null;
+        group.clear();
+        gi = 0;
+    }
+
+    /**
+     * Collect the right tuples whose join value is key into group, skipping
+     * the smaller ones.
+     */
+    private void fillGroup(Field key) throws DbException,
+            TransactionAbortedException {
+        group.clear();
+        while (rt != null && compareFields(rt.getField(pred.getField2()), key) < 0)
+            rt = right.hasNext() ? right.next() : null;
+        while (rt != null && compareFields(rt.getField(pred.getField2()), key) == 0) {
+            group.add(rt);
+            rt = right.hasNext() ? right.next() : null;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As with the other joins, the result is the concatenation
+     * of the joining tuples from the left and right relation.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (lt == null || gi >= group.size()) {
+            if (!left.hasNext())
+                return null;
+            Tuple prev = lt;
+            lt = left.next();
+            gi = 0;
+            Field key = lt.getField(pred.getField1());
+            // a left tuple with the same join value reuses the group
+            if (prev == null
+                    || compareFields(prev.getField(pred.getField1()), key) != 0)
+                fillGroup(key);
+        }
+        return Tuple.merge(comboTD, lt, group.get(gi++));
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
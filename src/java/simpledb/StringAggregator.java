@@ -28,8 +28,8 @@ public class StringAggregator implements Aggregator {
     private int afield;
     private Op what;
     
-    private Map<Field,Integer> mapV;
-    private Map<Field,Integer> mapC;
+    // group value -> {count}, updated in place
+    private Map<Field,int[]> mapV;
     
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
@@ -58,13 +58,26 @@ public class StringAggregator implements Aggregator {
     	if(gbfield!=-1)
     	    groupValue=tup.getField(gbfield);
     	else groupValue=null;
-    	Field aValue=tup.getField(afield);
-    	
-    	if(mapV.containsKey(groupValue)){
-    		mapV.put(groupValue, mapV.get(groupValue)+1);
+    	merge(groupValue);
+    }
+
+    /**
+     * Merge the selected rows of a batch; only the group-by field is read.
+     */
+    public void mergeBatchIntoGroups(TupleBatch batch) {
+    	for(int k=0;k<batch.numSelected();k++){
+    		int row=batch.selected(k);
+    		merge(gbfield!=-1 ? batch.getField(gbfield, row) : null);
+    	}
+    }
+
+    private void merge(Field groupValue) {
+    	int[] count=mapV.get(groupValue);
+    	if(count!=null){
+    		count[0]++;
     	}
     	else{
-    		mapV.put(groupValue, 1);
+    		mapV.put(groupValue, new int[] {1});
     	}
     }
     
@@ -91,7 +104,7 @@ public class StringAggregator implements Aggregator {
         if(gbfield==-1){
         	for(Field key: mapV.keySet()){
         		Tuple t=new Tuple(td);
-        		int value=mapV.get(key);
+        		int value=mapV.get(key)[0];
         		t.setField(0, new IntField(value));
         		list.add(t);
         	}
@@ -99,7 +112,7 @@ public class StringAggregator implements Aggregator {
         else{
         	for(Field key: mapV.keySet()){
         		Tuple t=new Tuple(td);
-        		int value=mapV.get(key);
+        		int value=mapV.get(key)[0];
         		t.setField(0, key);
         		t.setField(1, new IntField(value));
         		list.add(t);
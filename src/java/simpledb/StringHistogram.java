@@ -1,5 +1,9 @@
 package simpledb;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /**
  * A class to represent a fixed-width histogram over a single String-based
  * field.
@@ -20,6 +24,20 @@ public class StringHistogram {
         hist = new IntHistogram(buckets, minVal(), maxVal());
     }
 
+    private StringHistogram(IntHistogram hist) {
+        this.hist = hist;
+    }
+
+    /** Write this histogram to the specified stream */
+    void writeTo(DataOutputStream dos) throws IOException {
+        hist.writeTo(dos);
+    }
+
+    /** Read a histogram previously written with {@link #writeTo} */
+    static StringHistogram readFrom(DataInputStream dis) throws IOException {
+        return new StringHistogram(IntHistogram.readFrom(dis));
+    }
+
     /**
      * Convert a string to an integer, with the property that if the return
      * value(s1) < return value(s2), then s1 < s2
@@ -1,8 +1,11 @@
 package simpledb;
 
+import java.io.*;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -53,12 +56,132 @@ public class TableStats {
         System.out.println("Computing table stats.");
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
+            TableStats s = loadStatistics(tableid, IOCOSTPERPAGE);
+            if (s == null) {
+                s = new TableStats(tableid, IOCOSTPERPAGE);
+                s.saveStatistics();
+            }
             setTableStats(Database.getCatalog().getTableName(tableid), s);
         }
         System.out.println("Done.");
     }
 
+    /** Suffix of the sidecar file that persists the stats of a table */
+    static final String STATS_SUFFIX = ".stats";
+
+    private static final int STATS_MAGIC = 0x53544154;
+
+    /**
+     * @return the sidecar file the stats of the specified table are persisted
+     *         in, or null if the table is not backed by a single file
+     */
+    static File getStatsFile(int tableid) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        File data;
+        if (f instanceof HeapFile)
+            data = ((HeapFile) f).getFile();
+        else if (f instanceof BTreeFile)
+            data = ((BTreeFile) f).getFile();
+        else
+            return null;
+        return new File(data.getPath() + STATS_SUFFIX);
+    }
+
+    /**
+     * Load the statistics of a table from its sidecar stats file.
+     * 
+     * @return the loaded statistics, or null if there is no stats file or if
+     *         the table has been modified since the stats file was written
+     */
+    public static TableStats loadStatistics(int tableid, int ioCostPerPage) {
+        File statsFile = getStatsFile(tableid);
+        if (statsFile == null || !statsFile.exists())
+            return null;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        File data = new File(statsFile.getPath().substring(0,
+                statsFile.getPath().length() - STATS_SUFFIX.length()));
+        TupleDesc td = file.getTupleDesc();
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(statsFile)));
+            if (dis.readInt() != STATS_MAGIC)
+                return null;
+            if (dis.readLong() != data.length()
+                    || dis.readLong() != data.lastModified())
+                return null;
+            int ntups = dis.readInt();
+            int numFields = dis.readInt();
+            if (numFields != td.numFields())
+                return null;
+            TableStats s = new TableStats(tableid, ioCostPerPage, file);
+            s.ntups = ntups;
+            for (int i = 0; i < numFields; i++) {
+                s.distinct[i] = dis.readInt();
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    s.mins[i] = dis.readInt();
+                    s.maxs[i] = dis.readInt();
+                    s.intHists[i] = IntHistogram.readFrom(dis);
+                } else {
+                    s.strHists[i] = StringHistogram.readFrom(dis);
+                }
+            }
+            return s;
+        } catch (IOException e) {
+            // a truncated or corrupt stats file is just recomputed
+            return null;
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Persist these statistics to the sidecar stats file of the table, so
+     * that {@link #computeStatistics} can reload them at startup instead of
+     * rescanning the table.
+     */
+    public void saveStatistics() {
+        File statsFile = getStatsFile(tableid);
+        if (statsFile == null)
+            return;
+        File data = new File(statsFile.getPath().substring(0,
+                statsFile.getPath().length() - STATS_SUFFIX.length()));
+        TupleDesc td = file.getTupleDesc();
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(statsFile)));
+            try {
+                dos.writeInt(STATS_MAGIC);
+                dos.writeLong(data.length());
+                dos.writeLong(data.lastModified());
+                dos.writeInt(ntups);
+                dos.writeInt(td.numFields());
+                for (int i = 0; i < td.numFields(); i++) {
+                    dos.writeInt(distinct[i]);
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        dos.writeInt(mins[i]);
+                        dos.writeInt(maxs[i]);
+                        intHists[i].writeTo(dos);
+                    } else {
+                        strHists[i].writeTo(dos);
+                    }
+                }
+            } finally {
+                dos.close();
+            }
+        } catch (IOException e) {
+            // stats are only an optimization; they are recomputed next time
+            e.printStackTrace();
+            statsFile.delete();
+        }
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -66,9 +189,23 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    private final DbFile file;
+    private final int tableid;
+    private final int ioCostPerPage;
+    private int ntups;
+    private final int[] distinct;
+    private final int[] mins;
+    private final int[] maxs;
+    private final IntHistogram[] intHists;
+    private final StringHistogram[] strHists;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
+     * <p>
+     * All statistics (row count, per-column min/max, distinct counts and
+     * histograms) are computed here in a single scan of the table, so the
+     * estimate methods never touch the table again.
      * 
      * @param tableid
      *            The table over which to compute statistics
@@ -76,23 +213,138 @@ public class TableStats {
      *            The cost per page of IO. This doesn't differentiate between
      *            sequential-scan IO and disk seeks.
      */
-    private DbFile file;
-    private int tableid;
-    private int ioCostPerPage;
-    private Integer ntups;
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
-    	this.tableid=tableid;
-    	this.ioCostPerPage=ioCostPerPage;
-    	file=Database.getCatalog().getDatabaseFile(tableid);
-    	ntups=null;
+        this(tableid, ioCostPerPage, Database.getCatalog().getDatabaseFile(tableid));
+        analyze();
+    }
+
+    private TableStats(int tableid, int ioCostPerPage, DbFile file) {
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.file = file;
+        int n = file.getTupleDesc().numFields();
+        this.distinct = new int[n];
+        this.mins = new int[n];
+        this.maxs = new int[n];
+        this.intHists = new IntHistogram[n];
+        this.strHists = new StringHistogram[n];
+    }
+
+    /**
+     * The number of rows analyze keeps to build histograms and estimate
+     * distinct counts; tables up to this size are summarized exactly.
+     */
+    static final int SAMPLE_SIZE = 1 << 15;
+
+    /**
+     * Scan the table once and rebuild every statistic, in memory bounded by
+     * SAMPLE_SIZE rows. The row count and the min and max of the integer
+     * columns are exact; the integer histograms and the distinct counts
+     * come from a uniform reservoir sample of the rows, since the
+     * histograms can only be sized once the min and max are known.
+     */
+    private void analyze() {
+        TupleDesc td = file.getTupleDesc();
+        int n = td.numFields();
+        // the sampled values of each column; strings by their hash code
+        int[][] sample = new int[n][16];
+        int count = 0;
+        Random rand = new Random(tableid);
+        for (int i = 0; i < n; i++) {
+            mins[i] = Integer.MAX_VALUE;
+            maxs[i] = Integer.MIN_VALUE;
+        }
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator iterator = file.iterator(tid);
+        try {
+            iterator.open();
+            while (iterator.hasNext()) {
+                Tuple t = iterator.next();
+                // the row replaces a sampled one with probability SAMPLE_SIZE/(count+1)
+                int row = count < SAMPLE_SIZE ? count : rand.nextInt(count + 1);
+                if (row < SAMPLE_SIZE && row == sample[0].length) {
+                    for (int i = 0; i < n; i++)
+                        sample[i] = Arrays.copyOf(sample[i], Math.min(row * 2, SAMPLE_SIZE));
+                }
+                for (int i = 0; i < n; i++) {
+                    int v;
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        v = t.getInt(i);
+                        mins[i] = Math.min(mins[i], v);
+                        maxs[i] = Math.max(maxs[i], v);
+                    } else {
+                        String str = ((StringField) t.getField(i)).getValue();
+                        if (strHists[i] == null)
+                            strHists[i] = new StringHistogram(NUM_HIST_BINS);
+                        strHists[i].addValue(str);
+                        v = str.hashCode();
+                    }
+                    if (row < SAMPLE_SIZE)
+                        sample[i][row] = v;
+                }
+                count++;
+            }
+            iterator.close();
+        } catch (DbException | TransactionAbortedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                // the scan is read-only, so just drop its locks
+                Database.getBufferPool().transactionComplete(tid, false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        ntups = count;
+        int sampled = Math.min(count, SAMPLE_SIZE);
+        for (int i = 0; i < n; i++) {
+            int[] col = Arrays.copyOf(sample[i], sampled);
+            sample[i] = null;
+            Arrays.sort(col);
+            distinct[i] = estimateDistinct(col, count);
+
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                if (count == 0) {
+                    mins[i] = 0;
+                    maxs[i] = 0;
+                }
+                // selectivities are fractions of the histogram, so a
+                // histogram of the sample estimates those of the table
+                intHists[i] = new IntHistogram(NUM_HIST_BINS, mins[i], maxs[i]);
+                for (int v : col)
+                    intHists[i].addValue(v);
+                distinct[i] = (int) Math.min(distinct[i], (long) maxs[i] - mins[i] + 1);
+            } else if (strHists[i] == null) {
+                strHists[i] = new StringHistogram(NUM_HIST_BINS);
+            }
+        }
+    }
+
+    /**
+     * Estimate the number of distinct values of a column from a uniform
+     * sample of its values, with the Duj1 estimator of Haas et al.: the
+     * distinct values of the sample, scaled up by how many of them were
+     * seen only once. A sample of the whole column gives its exact count.
+     *
+     * @param sorted the sampled values, sorted
+     * @param total the number of values of the column
+     */
+    static int estimateDistinct(int[] sorted, int total) {
+        int n = sorted.length;
+        int d = 0, once = 0;
+        for (int j = 0; j < n; j++) {
+            if (j > 0 && sorted[j] == sorted[j - 1])
+                continue;
+            d++;
+            if (j + 1 == n || sorted[j + 1] != sorted[j])
+                once++;
+        }
+        if (n == 0 || n == total)
+            return d;
+        double est = (double) n * d / (n - once + (double) once * n / total);
+        return (int) Math.min(total, Math.round(est));
     }
 
     /**
@@ -109,9 +361,8 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-    	if(ntups==null) ntups=totalTuples();
     	int pageSize = BufferPool.getPageSize();
-    	int size=Database.getCatalog().getTupleDesc(tableid).getSize();
+    	int size=file.getTupleDesc().getSize();
     	int pageNums=(ntups*size+pageSize-1)/pageSize;
         return pageNums*ioCostPerPage;
     }
@@ -127,7 +378,6 @@ public class TableStats {
      */
     public int estimateTableCardinality(double selectivityFactor) {
         // some code goes here
-    	if(ntups==null) ntups=totalTuples();
         return (int)(selectivityFactor*ntups);
     }
 
@@ -143,6 +393,12 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
+        if (distinct[field] == 0)
+            return 1.0;
+        if (op.equals(Predicate.Op.EQUALS))
+            return 1.0 / distinct[field];
+        if (op.equals(Predicate.Op.NOT_EQUALS))
+            return 1.0 - 1.0 / distinct[field];
         return 1.0;
     }
 
@@ -161,61 +417,19 @@ public class TableStats {
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
-    	DbFileIterator iterator=file.iterator(new TransactionId());
-    	if(file.getTupleDesc().getFieldType(field).equals(Type.INT_TYPE)){
-    		int min=Integer.MAX_VALUE;
-    		int max=Integer.MIN_VALUE;
-    		
-    		try{
-    			iterator.open();
-    			while(iterator.hasNext()){
-        			Tuple t=iterator.next();
-        			int v=((IntField)(t.getField(field))).getValue();
-        			min=Math.min(min, v);
-        			max=Math.max(max, v);
-        		}
-    			iterator.close();
-    		}
-    		catch (DbException | TransactionAbortedException e) {
-                throw new RuntimeException(e);
-            }
-    		
-    		IntHistogram intHis=new IntHistogram(NUM_HIST_BINS, min, max);
-    		
-    		try{
-    			iterator.rewind();
-    			while(iterator.hasNext()){
-        			Tuple t=iterator.next();
-        			int v=((IntField)(t.getField(field))).getValue();
-        			intHis.addValue(v);
-        		}
-    			iterator.close();
-    		}
-    		catch (DbException | TransactionAbortedException e) {
-                throw new RuntimeException(e);
-            }
-    		
-    		return intHis.estimateSelectivity(op, ((IntField)constant).getValue());
-    	}
-    	else{
-    		StringHistogram strHis=new StringHistogram(NUM_HIST_BINS);
-    		
-    		try{
-    			iterator.open();
-    			while(iterator.hasNext()){
-        			Tuple t=iterator.next();
-        		    String v=((StringField)(t.getField(field))).getValue();
-        			strHis.addValue(v);
-        		}
-    			iterator.close();
-    		}
-    		catch (DbException | TransactionAbortedException e) {
-                throw new RuntimeException(e);
-            }
-    		
-    		return strHis.estimateSelectivity(op, ((StringField)constant).getValue());
-    	}
-    	
+        if (ntups == 0)
+            return 0.0;
+        if (file.getTupleDesc().getFieldType(field).equals(Type.INT_TYPE))
+            return intHists[field].estimateSelectivity(op, ((IntField) constant).getValue());
+        else
+            return strHists[field].estimateSelectivity(op, ((StringField) constant).getValue());
+    }
+
+    /**
+     * @return the number of distinct values of the specified field
+     */
+    public int numDistinctValues(int field) {
+        return distinct[field];
     }
 
     /**
@@ -223,21 +437,7 @@ public class TableStats {
      * */
     public int totalTuples() {
         // some code goes here
-    	DbFileIterator iterator=file.iterator(new TransactionId());
-    	ntups=0;
-    	try{
-			iterator.open();
-			while(iterator.hasNext()){
-    			ntups++;
-    			iterator.next();
-    		}
-			iterator.close();
-			return ntups;
-		}
-		catch (DbException | TransactionAbortedException e) {
-            throw new RuntimeException(e);
-        }
-       
+        return ntups;
     }
 
 }
@@ -1,22 +1,24 @@
 package simpledb;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 
-import simpledb.TupleDesc.TDItem;
-
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * The fields are kept in an array sized to the schema. Operators that build
+ * tuples from others use merge and project, which fill the array of the new
+ * tuple directly and share the Field objects, which are immutable; getInt
+ * reads an int field without the caller handling a Field.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
     TupleDesc descriptor;
-    private ArrayList<Field> fields;
+    private final Field[] fields;
     private RecordId recordId;
 
     /**
@@ -29,10 +31,31 @@ public class Tuple implements Serializable {
     public Tuple(TupleDesc td) {
         // some code goes here
     	descriptor = td;
-    	fields = new ArrayList<Field>(td.numFields());
-    	for (int i = 0; i < td.numFields(); i++) {
-    		fields.add(null);
-        }
+    	fields = new Field[td.numFields()];
+    }
+
+    /**
+     * @return a tuple of schema td whose fields are those of t1 followed by
+     *         those of t2, as a join outputs them
+     */
+    public static Tuple merge(TupleDesc td, Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(td);
+        int n1 = t1.fields.length;
+        for (int i = 0; i < n1; i++)
+            t.fields[i] = t1.getField(i);
+        for (int i = 0; i < t2.fields.length; i++)
+            t.fields[n1 + i] = t2.getField(i);
+        return t;
+    }
+
+    /**
+     * @return a tuple of schema td whose ith field is field fieldIds[i] of t
+     */
+    public static Tuple project(TupleDesc td, Tuple t, int[] fieldIds) {
+        Tuple p = new Tuple(td);
+        for (int i = 0; i < fieldIds.length; i++)
+            p.fields[i] = t.getField(fieldIds[i]);
+        return p;
     }
 
     /**
@@ -73,7 +96,7 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-    	fields.set(i, f);
+    	fields[i] = f;
     }
 
     /**
@@ -84,7 +107,18 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fields.get(i);
+        return fields[i];
+    }
+
+    /**
+     * @return the value of the ith field, which must be an int field that
+     *         has been set
+     *
+     * @param i
+     *            field index to return. Must be a valid index.
+     */
+    public int getInt(int i) {
+        return ((IntField) getField(i)).getValue();
     }
 
     /**
@@ -98,14 +132,14 @@ public class Tuple implements Serializable {
     public String toString() {
         // some code goes here
     	StringBuilder s = new StringBuilder();
-    	for(int i=0;i<fields.size()-1;i++) {
-    		if(fields.get(i)!=null)
-    			s.append(fields.get(i).toString());
+    	for(int i=0;i<fields.length-1;i++) {
+    		if(getField(i)!=null)
+    			s.append(getField(i).toString());
     		else
     			s.append("null");
     		s.append(" ");
     	}
-    	s.append(fields.get(fields.size()-1).toString());
+    	s.append(getField(fields.length-1).toString());
     	return s.toString();
     }
 
@@ -116,7 +150,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
-        return fields.iterator();
+        return Arrays.asList(fields).iterator();
     }
 
     /**
@@ -0,0 +1,210 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * TupleBatch holds up to a fixed number of rows of one schema by column:
+ * int fields in an int array per column, without an IntField per value,
+ * and other fields in a Field array per column. A selection vector lists
+ * the rows of the batch that are still part of the result, so that a
+ * filter drops rows without copying the columns.
+ * <p>
+ * Rows are added at the end; once the batch is returned by nextBatch its
+ * consumer only reads it and narrows its selection.
+ *
+ * @see BatchIterator
+ */
+public class TupleBatch {
+
+    /** The number of rows operators ask their children for */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private final int[][] ints; // column i if it is an int column, else null
+    private final Field[][] fields; // column i if it is not, else null
+    private final RecordId[] rids;
+    private int numRows;
+    private final int[] selection; // the selected rows, in order
+    private int numSelected;
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the schema of the rows
+     * @param capacity the most rows the batch can hold
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("batch of " + capacity + " rows");
+        this.td = td;
+        this.capacity = capacity;
+        int n = td.numFields();
+        ints = new int[n][];
+        fields = new Field[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                fields[i] = new Field[capacity];
+        }
+        rids = new RecordId[capacity];
+        selection = new int[capacity];
+    }
+
+    // a batch of the given columns of another batch
+    private TupleBatch(TupleDesc td, TupleBatch from, int[] fieldIds) {
+        this.td = td;
+        this.capacity = from.capacity;
+        ints = new int[fieldIds.length][];
+        fields = new Field[fieldIds.length][];
+        for (int i = 0; i < fieldIds.length; i++) {
+            ints[i] = from.ints[fieldIds[i]];
+            fields[i] = from.fields[fieldIds[i]];
+        }
+        rids = from.rids;
+        numRows = from.numRows;
+        selection = from.selection;
+        numSelected = from.numSelected;
+    }
+
+    /**
+     * Returns the next batch of an iterator: the batch it returns itself if
+     * it is a BatchIterator, or else a batch of the tuples it returns one at
+     * a time.
+     *
+     * @return a batch with at least one selected row, or null if the
+     *         iteration is finished.
+     */
+    public static TupleBatch next(OpIterator it, int maxRows)
+            throws DbException, TransactionAbortedException {
+        if (it instanceof BatchIterator)
+            return ((BatchIterator) it).nextBatch(maxRows);
+        TupleBatch b = null;
+        while ((b == null || !b.isFull()) && it.hasNext()) {
+            if (b == null)
+                b = new TupleBatch(it.getTupleDesc(), maxRows);
+            b.add(it.next());
+        }
+        return b;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows added, selected or not */
+    public int numRows() {
+        return numRows;
+    }
+
+    public boolean isFull() {
+        return numRows == capacity;
+    }
+
+    /** @return the number of selected rows */
+    public int numSelected() {
+        return numSelected;
+    }
+
+    /** @return the row number of the kth selected row */
+    public int selected(int k) {
+        if (k >= numSelected)
+            throw new NoSuchElementException();
+        return selection[k];
+    }
+
+    /**
+     * Add a row with the fields of t, which is selected.
+     */
+    public void add(Tuple t) {
+        int row = newRow();
+        copyFields(t, row, 0);
+        rids[row] = t.getRecordId();
+    }
+
+    /**
+     * Add a row with the fields of t1 followed by those of t2, as
+     * Tuple.merge would make them, without making the tuple.
+     */
+    public void addMerged(Tuple t1, Tuple t2) {
+        int row = newRow();
+        copyFields(t1, row, 0);
+        copyFields(t2, row, t1.getTupleDesc().numFields());
+        rids[row] = null;
+    }
+
+    private int newRow() {
+        if (numRows == capacity)
+            throw new IllegalStateException("batch is full");
+        selection[numSelected++] = numRows;
+        return numRows++;
+    }
+
+    private void copyFields(Tuple t, int row, int col) {
+        int n = t.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++, col++) {
+            if (ints[col] != null)
+                ints[col][row] = t.getInt(i);
+            else
+                fields[col][row] = t.getField(i);
+        }
+    }
+
+    /** @return the value of int column col in the given row */
+    public int getInt(int col, int row) {
+        return ints[col][row];
+    }
+
+    /** @return column col of the given row as a Field */
+    public Field getField(int col, int row) {
+        if (ints[col] != null)
+            return new IntField(ints[col][row]);
+        return fields[col][row];
+    }
+
+    /** @return the given row as a Tuple */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(rids[row]);
+        return t;
+    }
+
+    /**
+     * Keep only the selected rows that satisfy p; an int column compared
+     * to an int operand is compared without making Fields.
+     */
+    public void select(Predicate p) {
+        int col = p.getField();
+        Predicate.Op op = p.getOp();
+        Field operand = p.getOperand();
+        int n = 0;
+        if (ints[col] != null && operand instanceof IntField) {
+            int[] values = ints[col];
+            int v = ((IntField) operand).getValue();
+            for (int k = 0; k < numSelected; k++) {
+                int row = selection[k];
+                if (IntField.compare(values[row], op, v))
+                    selection[n++] = row;
+            }
+        } else {
+            for (int k = 0; k < numSelected; k++) {
+                int row = selection[k];
+                if (getField(col, row).compare(op, operand))
+                    selection[n++] = row;
+            }
+        }
+        numSelected = n;
+    }
+
+    /**
+     * @return a batch of schema td whose ith column is column fieldIds[i] of
+     *         this batch, with the same selected rows; the columns are
+     *         shared, not copied
+     */
+    public TupleBatch project(TupleDesc td, int[] fieldIds) {
+        return new TupleBatch(td, this, fieldIds);
+    }
+}
@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * TupleFile is a temporary file of tuples, written sequentially and read
+ * back sequentially, for operators that spill intermediate results to disk
+ * when they run out of memory. Tuples are stored as their serialized fields,
+ * without a page layout.
+ * <p>
+ * The file is deleted by {@link #delete}, which its operator calls when it
+ * is done with the file, when it is closed, and when it fails. Files are
+ * not registered with File.deleteOnExit, whose list only grows in a
+ * long-running process.
+ *
+ * @see HashEquiJoin
+ * @see OrderBy
+ */
+class TupleFile {
+
+    private final File file;
+    private final TupleDesc td;
+    private int count;
+    private DataOutputStream out;
+
+    /**
+     * Create an empty temporary file for tuples of td, open for writing.
+     *
+     * @param prefix
+     *            the prefix of the temporary file name
+     */
+    TupleFile(String prefix, TupleDesc td) throws IOException {
+        this.file = File.createTempFile(prefix, ".tmp");
+        this.td = td;
+        this.count = 0;
+        try {
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    /** @return the number of tuples written to this file */
+    int size() {
+        return count;
+    }
+
+    /** Append t to the file; only valid before {@link #finish}. */
+    void write(Tuple t) throws IOException {
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        count++;
+    }
+
+    /** Flush and close the file for writing. */
+    void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * @return a reader over the tuples of this file, from the start;
+     *         finishes writing first
+     */
+    Reader reader() throws IOException {
+        finish();
+        return new Reader();
+    }
+
+    void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        file.delete();
+    }
+
+    /** Sequential reader of a TupleFile. */
+    class Reader {
+        private final DataInputStream in;
+        private int left;
+
+        private Reader() throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            this.left = count;
+        }
+
+        /** @return the next tuple, or null at the end of the file */
+        Tuple next() throws DbException {
+            if (left == 0)
+                return null;
+            left--;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (ParseException e) {
+                throw new DbException("corrupt temporary tuple file: " + e);
+            }
+            return t;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was written through the stream
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * TwoQueueReplacementPolicy implements the scan-resistant 2Q algorithm
+ * (Johnson and Shasha, VLDB 1994).
+ * <p>
+ * Pages seen for the first time enter a small FIFO queue (A1in). Pages
+ * evicted from A1in are remembered, without their data, in a ghost queue
+ * (A1out). Only a page that is requested again while its id is in A1out
+ * is promoted to the main LRU queue (Am). A sequential scan therefore
+ * cycles through A1in alone and cannot push hot pages such as B+ tree
+ * internal and root pointer pages out of Am.
+ */
+public class TwoQueueReplacementPolicy implements ReplacementPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+
+    // insertion ordered, head is the oldest page
+    private final LinkedHashMap<PageId, Boolean> a1in;
+    // access ordered, head is the least recently used page
+    private final LinkedHashMap<PageId, Boolean> am;
+    private final LinkedHashSet<PageId> a1out;
+
+    /**
+     * @param numPages the number of pages in the buffer pool; A1in gets a
+     *        quarter of them and A1out remembers half as many page ids
+     */
+    public TwoQueueReplacementPolicy(int numPages) {
+        this.maxIn = Math.max(1, numPages / 4);
+        this.maxOut = Math.max(1, numPages / 2);
+        this.a1in = new LinkedHashMap<PageId, Boolean>(numPages, 0.75f, false);
+        this.am = new LinkedHashMap<PageId, Boolean>(numPages, 0.75f, true);
+        this.a1out = new LinkedHashSet<PageId>();
+    }
+
+    public synchronized void recordAccess(PageId pid) {
+        if (am.get(pid) != null) {
+            // get() on an access ordered map moves pid to the MRU end
+            return;
+        }
+        if (a1in.containsKey(pid)) {
+            // correlated references within A1in do not count as reuse
+            return;
+        }
+        if (a1out.remove(pid))
+            am.put(pid, Boolean.TRUE);
+        else
+            a1in.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void remove(PageId pid) {
+        a1in.remove(pid);
+        am.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(EvictionFilter filter) {
+        PageId victim;
+        if (a1in.size() > maxIn || am.isEmpty()) {
+            victim = evictFrom(a1in, filter);
+            if (victim != null) {
+                rememberEvicted(victim);
+                return victim;
+            }
+            return evictFrom(am, filter);
+        }
+        victim = evictFrom(am, filter);
+        if (victim != null)
+            return victim;
+        victim = evictFrom(a1in, filter);
+        if (victim != null)
+            rememberEvicted(victim);
+        return victim;
+    }
+
+    private PageId evictFrom(LinkedHashMap<PageId, Boolean> queue, EvictionFilter filter) {
+        Iterator<PageId> it = queue.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (filter.canEvict(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void rememberEvicted(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > maxOut) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -24,6 +24,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(byte[] data, int off) {
+            return new IntField(readInt(data, off));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +47,12 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(byte[] data, int off) {
+            int strLen = readInt(data, off);
+            return new StringField(new String(data, off + 4, strLen), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +71,17 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   decoded from data at offset off, in the format Field.serialize writes,
+   *   without copying the bytes through a stream.
+   */
+    public abstract Field parse(byte[] data, int off);
+
+    // a big-endian int, as DataInputStream.readInt reads it
+    static int readInt(byte[] data, int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+            | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
 }
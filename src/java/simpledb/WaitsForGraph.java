@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * WaitsForGraph records which transactions each blocked transaction is
+ * waiting for, and looks for a cycle every time the edges of a transaction
+ * change. A cycle is a deadlock; one transaction on it is chosen as the
+ * victim according to the {@link VictimPolicy}.
+ * <p>
+ * A transaction waits for at most one lock at a time, so each transaction
+ * has a single set of outgoing edges.
+ *
+ * @see LockManager
+ */
+class WaitsForGraph {
+
+    /** How to choose the transaction to abort among those on a cycle. */
+    enum VictimPolicy {
+        /** abort the most recently started transaction */
+        YOUNGEST,
+        /** abort the transaction holding the fewest locks */
+        FEWEST_LOCKS
+    }
+
+    /** Tells the graph how many locks a transaction holds. */
+    interface LockCounter {
+        int numLocks(TransactionId tid);
+    }
+
+    private final VictimPolicy policy;
+    private final LockCounter counter;
+    private final Map<TransactionId, Set<TransactionId>> waitsFor;
+
+    WaitsForGraph(VictimPolicy policy, LockCounter counter) {
+        this.policy = policy;
+        this.counter = counter;
+        this.waitsFor = new HashMap<TransactionId, Set<TransactionId>>();
+    }
+
+    /**
+     * Record that tid now waits for every transaction in blockers, and
+     * check whether that closes a cycle.
+     *
+     * @return the victim to abort if tid is now deadlocked, or null. The
+     *         victim's edges are removed from the graph.
+     */
+    synchronized TransactionId block(TransactionId tid, Set<TransactionId> blockers) {
+        waitsFor.put(tid, new HashSet<TransactionId>(blockers));
+        ArrayList<TransactionId> cycle = findCycle(tid);
+        if (cycle == null)
+            return null;
+        TransactionId victim = chooseVictim(cycle);
+        waitsFor.remove(victim);
+        return victim;
+    }
+
+    /** Record that tid is no longer waiting. */
+    synchronized void unblock(TransactionId tid) {
+        waitsFor.remove(tid);
+    }
+
+    /**
+     * @return the transactions on a path from tid back to itself, or null
+     *         if tid is not on a cycle
+     */
+    private ArrayList<TransactionId> findCycle(TransactionId tid) {
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        path.add(tid);
+        if (dfs(tid, tid, path, new HashSet<TransactionId>()))
+            return path;
+        return null;
+    }
+
+    private boolean dfs(TransactionId start, TransactionId cur,
+            ArrayList<TransactionId> path, Set<TransactionId> visited) {
+        Set<TransactionId> next = waitsFor.get(cur);
+        if (next == null)
+            return false;
+        for (TransactionId t : next) {
+            if (t.equals(start))
+                return true;
+            if (visited.add(t)) {
+                path.add(t);
+                if (dfs(start, t, path, visited))
+                    return true;
+                path.remove(path.size() - 1);
+            }
+        }
+        return false;
+    }
+
+    private TransactionId chooseVictim(ArrayList<TransactionId> cycle) {
+        TransactionId victim = cycle.get(0);
+        for (TransactionId t : cycle) {
+            if (policy == VictimPolicy.YOUNGEST) {
+                if (t.getId() > victim.getId())
+                    victim = t;
+            } else if (counter.numLocks(t) < counter.numLocks(victim)) {
+                victim = t;
+            }
+        }
+        return victim;
+    }
+}
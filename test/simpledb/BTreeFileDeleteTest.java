@@ -89,6 +89,8 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		assertTrue(sibling.getNumTuples() == totalTuples/2 || sibling.getNumTuples() == totalTuples/2 + 1);
 		assertTrue(sibling.reverseIterator().next().getField(keyField).compare(Op.LESS_THAN_OR_EQ, 
 				page.iterator().next().getField(keyField)));
+		// the parent key is the first key of the right-hand page
+		assertEquals(page.iterator().next().getField(keyField), parent.iterator().next().getKey());
 	} 
 
 	@Test
@@ -128,6 +130,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		assertTrue(sibling.getNumTuples() == totalTuples/2 || sibling.getNumTuples() == totalTuples/2 + 1);
 		assertTrue(page.reverseIterator().next().getField(keyField).compare(Op.LESS_THAN_OR_EQ, 
 				sibling.iterator().next().getField(keyField)));
+		assertEquals(sibling.iterator().next().getField(keyField), parent.iterator().next().getKey());
 	} 
 
 	@Test
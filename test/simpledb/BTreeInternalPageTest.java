@@ -166,6 +166,38 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() when entries have
+	 * been deleted from the middle of the page
+	 */
+	@Test public void testReverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		page.deleteKeyAndRightChild(entries.remove(entries.size() - 2));
+		page.deleteKeyAndLeftChild(entries.remove(entries.size() / 2));
+
+		entries.clear();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		Collections.reverse(entries);
+
+		int row = 0;
+		it = page.reverseIterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			assertEquals(entries.get(row).getKey(), e.getKey());
+			assertEquals(entries.get(row).getLeftChild(), e.getLeftChild());
+			assertEquals(entries.get(row).getRightChild(), e.getRightChild());
+			assertEquals(entries.get(row).getRecordId(), e.getRecordId());
+			row++;
+		}
+		assertEquals(entries.size(), row);
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
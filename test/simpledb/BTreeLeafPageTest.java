@@ -122,6 +122,26 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for the before image, which is captured on the first
+	 * modification after BTreeLeafPage.setBeforeImage()
+	 */
+	@Test public void beforeImage() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		byte[] loaded = page.getPageData();
+		page.setLeftSiblingId(new BTreePageId(pid.getTableId(), 1, BTreePageId.LEAF));
+		assertTrue(Arrays.equals(loaded, page.getBeforeImageData()));
+		assertTrue(page.getBeforeImage().getLeftSiblingId() == null);
+
+		page.setBeforeImage();
+		byte[] committed = page.getPageData();
+		assertTrue(Arrays.equals(committed, page.getBeforeImageData()));
+		page.deleteTuple(page.iterator().next());
+		assertTrue(Arrays.equals(committed, page.getBeforeImageData()));
+		assertFalse(Arrays.equals(committed, page.getPageData()));
+		assertEquals(page.getNumEmptySlots() - 1, page.getBeforeImage().getNumEmptySlots());
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.setLeftSiblingId()
 	 */
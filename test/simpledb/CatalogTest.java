@@ -1,7 +1,9 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
+import java.io.File;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -93,6 +95,39 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Check that a binary schema file reloads the heap file tables
+     */
+    @Test public void saveAndLoadSchema() throws Exception {
+        File data = File.createTempFile("table", ".dat");
+        data.deleteOnExit();
+        File schema = new File(data.getParentFile(), data.getName() + ".schema");
+        schema.deleteOnExit();
+        TupleDesc td = Utility.getTupleDesc(3, "col");
+        HeapFile hf = new HeapFile(data, td);
+        Database.getCatalog().addTable(hf, "saved", td.getFieldName(1));
+        try {
+            Database.getCatalog().saveSchema(schema.getPath());
+            Assert.fail("Should only save tables stored in heap files");
+        } catch (UnsupportedOperationException e) {
+            // Expected to get here
+        }
+        assertFalse(schema.exists());
+
+        Database.getCatalog().clear();
+        Database.getCatalog().addTable(hf, "saved", td.getFieldName(1));
+        Database.getCatalog().saveSchema(schema.getPath());
+
+        Database.getCatalog().clear();
+        Database.getCatalog().loadSchema(schema.getPath());
+        assertEquals(hf.getId(), Database.getCatalog().getTableId("saved"));
+        assertEquals(td, Database.getCatalog().getTupleDesc(hf.getId()));
+        assertEquals(td.getFieldName(1), Database.getCatalog().getPrimaryKey(hf.getId()));
+        DbFile f = Database.getCatalog().getDatabaseFile(hf.getId());
+        assertEquals(hf.getId(), f.getId());
+        assertEquals(data.getAbsoluteFile(), ((HeapFile) f).getFile().getAbsoluteFile());
+    }
+
     /**
      * JUnit suite target
      */
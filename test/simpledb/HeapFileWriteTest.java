@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.File;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -47,6 +49,81 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         
     }
 
+    /**
+     * Inserts should go to a page with room without locking the full pages
+     * before it, and reuse space freed by deletes.
+     */
+    @Test public void insertUsesFreeSpace() throws Exception {
+        for (int i = 0; i < 504 * 2 + 1; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // only the last page has room, so only it gets locked
+        tid = new TransactionId();
+        Page p = empty.insertTuple(tid, Utility.getHeapTuple(1, 2)).get(0);
+        assertEquals(2, p.getId().getPageNumber());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 1)));
+
+        // free a slot on the second page, and the next insert fills it
+        Tuple t = Utility.getHeapTuple(2, 2);
+        t.setRecordId(new RecordId(new HeapPageId(empty.getId(), 1), 3));
+        empty.deleteTuple(tid, t);
+        p = empty.insertTuple(tid, Utility.getHeapTuple(3, 2)).get(0);
+        assertEquals(1, p.getId().getPageNumber());
+        assertEquals(3, empty.numPages());
+    }
+
+    /**
+     * A rebuilt free space map counts the pages modified in the buffer pool,
+     * and the map of a file outside a schema file is not persisted
+     */
+    @Test public void freeSpaceMapRebuild() throws Exception {
+        for (int i = 0; i < 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+
+        // page 0 is full in the buffer pool, though still empty on disk
+        FreeSpaceMap fsm = new FreeSpaceMap(empty.getFile());
+        fsm.rebuild(empty);
+        assertEquals(-1, fsm.pageWithRoom(empty, 0));
+
+        Database.getBufferPool().flushAllPages();
+        assertFalse(new File(empty.getFile().getPath() + FreeSpaceMap.FSM_SUFFIX).exists());
+    }
+
+    /**
+     * A persisted free space map is rewritten in place when it is rebuilt,
+     * and emptied when it is invalidated
+     */
+    @Test public void freeSpaceMapSidecar() throws Exception {
+        File sidecar = new File(empty.getFile().getPath() + FreeSpaceMap.FSM_SUFFIX);
+        sidecar.deleteOnExit();
+        empty.persistFreeSpaceMap();
+        for (int i = 0; i < 505; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        assertEquals(2, sidecar.length());
+
+        // a sidecar longer than the file is cut to size, not replaced
+        FreeSpaceMap fsm = new FreeSpaceMap(empty.getFile());
+        fsm.persist();
+        fsm.pageWritten(empty, 0, 0);
+        java.io.RandomAccessFile raf = new java.io.RandomAccessFile(sidecar, "rw");
+        raf.setLength(5);
+        raf.close();
+        fsm.rebuild(empty);
+        assertEquals(2, sidecar.length());
+        assertEquals(1, fsm.pageWithRoom(empty, 0));
+
+        fsm.invalidate();
+        assertEquals(0, sidecar.length());
+        assertEquals(1, fsm.pageWithRoom(empty, 0));
+        assertEquals(2, sidecar.length());
+    }
+
     /**
      * JUnit suite target
      */
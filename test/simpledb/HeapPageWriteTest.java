@@ -2,8 +2,10 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +128,137 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Check that deleted tuples keep their values and that modifying a page
+     * leaves the bytes it was created from alone
+     */
+    @Test public void deleteKeepsTupleValues() throws Exception {
+        byte[] data = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, data);
+        Tuple added = Utility.getHeapTuple(7, 2);
+        page.insertTuple(added);
+        Iterator<Tuple> it = page.iterator();
+        LinkedList<Tuple> tuples = new LinkedList<Tuple>();
+        while (it.hasNext())
+            tuples.add(it.next());
+        assertTrue(tuples.remove(added));
+
+        for (Tuple t : tuples)
+            page.deleteTuple(t);
+        page.insertTuple(Utility.getHeapTuple(8, 2));
+
+        int i = 0;
+        for (Tuple t : tuples) {
+            assertEquals(HeapPageReadTest.EXAMPLE_VALUES[i][0], ((IntField) t.getField(0)).getValue());
+            assertEquals(HeapPageReadTest.EXAMPLE_VALUES[i][1], ((IntField) t.getField(1)).getValue());
+            i++;
+        }
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, data));
+        assertEquals(page.getNumEmptySlots(), new HeapPage(pid, page.getPageData()).getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for the before image, which is captured on the first
+     * modification after HeapPage.setBeforeImage()
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImageData()));
+
+        page.setBeforeImage();
+        byte[] committed = page.getPageData();
+        assertTrue(Arrays.equals(committed, page.getBeforeImageData()));
+        page.insertTuple(Utility.getHeapTuple(8, 2));
+        assertTrue(Arrays.equals(committed, page.getBeforeImageData()));
+        assertEquals(page.getNumEmptySlots() + 1, page.getBeforeImage().getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for pages of tuples with string fields, which store the
+     * strings at their real length
+     */
+    @Test public void stringTuples() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+        HeapPageId spid = new HeapPageId(-2, 0);
+        HeapPage page = new HeapPage(spid, HeapPage.createEmptyPageData());
+
+        LinkedList<Tuple> added = new LinkedList<Tuple>();
+        while (page.getNumEmptySlots() > 0) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(added.size()));
+            t.setField(1, new StringField("s" + added.size(), Type.STRING_LEN));
+            page.insertTuple(t);
+            added.add(t);
+        }
+        // fixed-length slots of Type.STRING_LEN bytes hold 30 tuples a page
+        assertTrue(added.size() > 30);
+
+        // free every other slot, then fill the fragmented space
+        for (int i = 0; i < added.size(); i += 2)
+            page.deleteTuple(added.get(i));
+        String longer = "a string longer than the ones deleted";
+        int inserted = 0;
+        while (page.getNumEmptySlots() > 0) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(-1));
+            t.setField(1, new StringField(longer, Type.STRING_LEN));
+            page.insertTuple(t);
+            inserted++;
+        }
+        assertTrue(inserted > 0);
+
+        HeapPage copy = new HeapPage(spid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        int odd = 0, longOnes = 0;
+        Iterator<Tuple> it = copy.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int v = ((IntField) t.getField(0)).getValue();
+            String s = ((StringField) t.getField(1)).getValue();
+            if (v == -1) {
+                assertEquals(longer, s);
+                longOnes++;
+            } else {
+                assertEquals(1, v % 2);
+                assertEquals("s" + v, s);
+                odd++;
+            }
+        }
+        assertEquals(added.size() / 2, odd);
+        assertEquals(inserted, longOnes);
+    }
+
+    /**
+     * A page of a table with string fields in the older bitmap layout is
+     * rejected instead of being read as a slotted page
+     */
+    @Test public void oldStringLayout() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+        HeapPageId spid = new HeapPageId(-2, 0);
+
+        // the header bitmap with the first slot used, then its int field
+        byte[] data = HeapPage.createEmptyPageData();
+        data[0] = 1;
+        data[7] = 42;
+        try {
+            new HeapPage(spid, data);
+            fail("page in the bitmap layout read as a slotted page");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // pages of zeroes and slotted pages are read
+        HeapPage page = new HeapPage(spid, HeapPage.createEmptyPageData());
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(42));
+        t.setField(1, new StringField("s", Type.STRING_LEN));
+        page.insertTuple(t);
+        new HeapPage(spid, page.getPageData());
+    }
+
     /**
      * JUnit suite target
      */
@@ -621,4 +621,92 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Equality joins should be planned with an algorithm other than a plain
+     * nested loop, and the choice should be recorded on the planned joins
+     * for instantiateJoin.
+     */
+    @Test
+    public void chooseJoinAlgorithmTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS));
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c1 = t2.c2;"), nodes);
+
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.HASH, jo.chooseJoinAlgorithm(
+                nodes.get(0), 1000, 10000, 200, 2000, true));
+        // a range join cannot use hashing or sorting
+        LogicalJoinNode ltNode = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.LESS_THAN);
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.NESTED_LOOP, jo.chooseJoinAlgorithm(
+                ltNode, 1000, 10000, 200, 2000, true));
+
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName1, stats1);
+        stats.put(tableName2, stats2);
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        filterSelectivities.put("t1", 1.0);
+        filterSelectivities.put("t2", 1.0);
+        Vector<LogicalJoinNode> result = jo.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.HASH, result.get(0).algorithm);
+    }
+
+    /**
+     * Inputs far larger than the join memory must not be planned with a
+     * join that sorts them for free: the sort-merge join pays for writing
+     * and re-reading its runs, so the hash join is chosen.
+     */
+    @Test
+    public void largeJoinInputsTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS));
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c1 = t2.c2;"), nodes);
+
+        // wide tuples: two million on each side, 10 to a page
+        int card = 2000000;
+        double cost = 200000 * 1000.0;
+        double sortMerge = jo.estimateJoinCost(JoinOptimizer.JoinAlgorithm.SORT_MERGE,
+                nodes.get(0), card, card, cost, cost);
+        double hash = jo.estimateJoinCost(JoinOptimizer.JoinAlgorithm.HASH,
+                nodes.get(0), card, card, cost, cost);
+        Assert.assertTrue(sortMerge > 2 * (cost + cost));
+        Assert.assertTrue(hash < sortMerge);
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.HASH, jo.chooseJoinAlgorithm(
+                nodes.get(0), card, card, cost, cost, true));
+    }
+
+    /**
+     * A hash join that spills part of its inputs must still rank below a
+     * sort-merge join of the same inputs, which spills all of them.
+     */
+    @Test
+    public void spillingHashJoinTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS));
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c1 = t2.c2;"), nodes);
+
+        // twice the hash join memory on each side, 10 tuples to a page
+        int card = 2 * HashEquiJoin.MAP_SIZE;
+        double cost = card / 10 * 1000.0;
+        double sortMerge = jo.estimateJoinCost(JoinOptimizer.JoinAlgorithm.SORT_MERGE,
+                nodes.get(0), card, card, cost, cost);
+        double hash = jo.estimateJoinCost(JoinOptimizer.JoinAlgorithm.HASH,
+                nodes.get(0), card, card, cost, cost);
+        Assert.assertTrue(hash > cost + cost);
+        Assert.assertTrue(hash < sortMerge);
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.HASH, jo.chooseJoinAlgorithm(
+                nodes.get(0), card, card, cost, cost, true));
+    }
 }
@@ -3,6 +3,9 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -105,6 +108,167 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for SortMergeJoin.getNext() using an = predicate
+   */
+  @Test public void sortMergeEqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.rewind();
+    eqJoin.rewind();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * SortMergeJoin must return the cross product of runs of equal join
+   * values on both sides
+   */
+  @Test public void sortMergeDuplicates() throws Exception {
+    OpIterator left = TestUtil.createTupleList(1, new int[] { 2, 1, 2, 3 });
+    OpIterator right = TestUtil.createTupleList(1, new int[] { 2, 2, 4, 1, 2 });
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 1, 1,
+                    2, 2, 2, 2, 2, 2,
+                    2, 2, 2, 2, 2, 2 });
+    SortMergeJoin op = new SortMergeJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right);
+    op.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin with a memory budget of two tuples, so both
+   * inputs are sorted externally
+   */
+  @Test public void sortMergeSpills() throws Exception {
+    OpIterator left = TestUtil.createTupleList(1, new int[] { 5, 2, 1, 2, 3, 4 });
+    OpIterator right = TestUtil.createTupleList(1, new int[] { 2, 6, 2, 4, 1, 2, 5 });
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 1, 1,
+                    2, 2, 2, 2, 2, 2,
+                    2, 2, 2, 2, 2, 2,
+                    4, 4, 5, 5 });
+    SortMergeJoin op = new SortMergeJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right, 2);
+    op.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.rewind();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+  }
+
+  private static ArrayList<ArrayList<Integer>> results(OpIterator op) throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    op.open();
+    while (op.hasNext()) {
+      ArrayList<Integer> row = new ArrayList<Integer>();
+      Tuple t = op.next();
+      for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+        row.add(((IntField) t.getField(i)).getValue());
+      rows.add(row);
+    }
+    op.close();
+    Collections.sort(rows, new java.util.Comparator<ArrayList<Integer>>() {
+      public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+        return a.toString().compareTo(b.toString());
+      }
+    });
+    return rows;
+  }
+
+  /**
+   * IndexNestedLoopJoin must return the same tuples as a nested-loop join
+   * over the same BTreeFile
+   */
+  @Test public void indexNestedLoopJoin() throws Exception {
+    BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 300, 20, null, null, 0);
+    TransactionId tid = new TransactionId();
+    for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS,
+        Predicate.Op.GREATER_THAN, Predicate.Op.LESS_THAN_OR_EQ }) {
+      JoinPredicate pred = new JoinPredicate(0, op, 0);
+      assertTrue(IndexNestedLoopJoin.canProbe(pred, new SeqScan(tid, f.getId())));
+      OpIterator inlj = new IndexNestedLoopJoin(pred,
+          TestUtil.createTupleList(width1, new int[] { 1, 2, 3, 4, 5, 6, 7, 8 }),
+          new SeqScan(tid, f.getId()));
+      OpIterator nlj = new Join(pred,
+          TestUtil.createTupleList(width1, new int[] { 1, 2, 3, 4, 5, 6, 7, 8 }),
+          new SeqScan(tid, f.getId()));
+      assertEquals(results(nlj), results(inlj));
+    }
+    // not the key field
+    assertTrue(!IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        new SeqScan(tid, f.getId())));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * HashEquiJoin must return the same tuples as a nested-loop join when its
+   * memory budget forces partitions to be spilled, including partitions
+   * still too large for the budget
+   */
+  @Test public void hashJoinSpills() throws Exception {
+    int n = 3000;
+    int[] left = new int[n * 2];
+    int[] right = new int[n * 3];
+    for (int i = 0; i < n; i++) {
+      left[2 * i] = i % 700;
+      left[2 * i + 1] = i;
+      right[3 * i] = (i * 7) % 1000;
+      right[3 * i + 1] = i;
+      right[3 * i + 2] = -i;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    for (int budget : new int[] { 100000, 500, 10 }) {
+      OpIterator hj = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+          TestUtil.createTupleList(3, right), budget);
+      OpIterator nlj = new Join(pred, TestUtil.createTupleList(2, left),
+          TestUtil.createTupleList(3, right));
+      ArrayList<ArrayList<Integer>> expected = results(nlj);
+      assertEquals(expected, results(hj));
+      // and again after a rewind
+      hj.open();
+      while (hj.hasNext())
+        hj.next();
+      hj.rewind();
+      int count = 0;
+      while (hj.hasNext()) {
+        hj.next();
+        count++;
+      }
+      hj.close();
+      assertEquals(expected.size(), count);
+    }
+  }
+
+  /**
+   * Join must return every match when the outer spans several blocks, both
+   * with an inner small enough to be cached and with one that is not
+   */
+  @Test public void blockNestedLoopJoin() throws Exception {
+    int[] left = new int[1500 * 2];
+    for (int i = 0; i < 1500; i++) {
+      left[2 * i] = i % 400;
+      left[2 * i + 1] = i;
+    }
+    for (int innerRows : new int[] { 600, 12000 }) {
+      int[] right = new int[innerRows * 3];
+      for (int i = 0; i < innerRows; i++) {
+        right[3 * i] = (i * 13) % 500;
+        right[3 * i + 1] = i;
+        right[3 * i + 2] = -i;
+      }
+      JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+      Join op = new Join(pred, TestUtil.createTupleList(2, left),
+          TestUtil.createTupleList(3, right), 1);
+      OpIterator hj = new HashEquiJoin(pred, TestUtil.createTupleList(2, left),
+          TestUtil.createTupleList(3, right));
+      assertEquals(results(hj), results(op));
+    }
+  }
+
   /**
    * JUnit suite target
    */
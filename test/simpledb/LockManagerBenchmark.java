@@ -0,0 +1,66 @@
+package simpledb;
+
+/**
+ * Measures LockManager throughput as the number of threads grows. Each
+ * thread runs short transactions that take shared locks on a set of pages
+ * read by everybody and an exclusive lock on pages of its own, then release
+ * them all, which is the lock traffic of concurrent scans and inserts on
+ * different pages.
+ * <p>
+ * Run with: java -cp bin/src:bin/test simpledb.LockManagerBenchmark [seconds]
+ */
+public class LockManagerBenchmark {
+
+    private static final int SHARED_PAGES = 8;
+    private static final int PRIVATE_PAGES = 8;
+
+    private static long run(final int numThreads, final long millis) throws InterruptedException {
+        final LockManager lm = new LockManager(BufferPool.DEFAULT_PAGES, 2 * BufferPool.DEFAULT_PAGES);
+        final long[] counts = new long[numThreads];
+        final long end = System.currentTimeMillis() + millis;
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int t = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    long n = 0;
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            TransactionId tid = new TransactionId();
+                            for (int p = 0; p < SHARED_PAGES; p++)
+                                lm.acquireLock(tid, new HeapPageId(-1, p),
+                                        LockManager.LockType.SLock);
+                            for (int p = 0; p < PRIVATE_PAGES; p++)
+                                lm.acquireLock(tid, new HeapPageId(t, p),
+                                        LockManager.LockType.XLock);
+                            lm.releaseLocksOnTransaction(tid);
+                            n++;
+                        }
+                    } catch (TransactionAbortedException e) {
+                        e.printStackTrace();
+                    }
+                    counts[t] = n;
+                }
+            };
+        }
+        for (Thread th : threads)
+            th.start();
+        for (Thread th : threads)
+            th.join();
+        long total = 0;
+        for (long c : counts)
+            total += c;
+        return total;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2;
+        // warm up the JIT
+        run(1, 500);
+        System.out.println("threads\ttxns/sec");
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            long txns = run(threads, seconds * 1000);
+            System.out.println(threads + "\t" + (txns / seconds));
+        }
+    }
+}
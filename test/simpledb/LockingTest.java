@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -186,6 +188,92 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Start acquiring a lock in a new thread, and give it TIMEOUT to get
+   * the lock or block.
+   */
+  private TestUtil.LockGrabber startGrabber(TransactionId tid, PageId pid,
+      Permissions perm) throws Exception {
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+    t.start();
+    Thread.sleep(TIMEOUT);
+    assertNull(t.getError());
+    return t;
+  }
+
+  /**
+   * Unit test for LockManager queueing.
+   * A waiting write lock is not overtaken by read locks requested after it.
+   */
+  @Test public void writerNotStarvedByReaders() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    assertFalse(writer.acquired());
+
+    // compatible with the holder, but queued behind the writer
+    TestUtil.LockGrabber reader = startGrabber(tid3, p0, Permissions.READ_ONLY);
+    assertFalse(reader.acquired());
+
+    bp.releasePage(tid1, p0);
+    Thread.sleep(TIMEOUT);
+    assertTrue(writer.acquired());
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    Thread.sleep(TIMEOUT);
+    assertTrue(reader.acquired());
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for LockManager queueing.
+   * Read locks waiting together at the head of the queue are all granted
+   * when the write lock is released.
+   */
+  @Test public void queuedReadersGrantedTogether() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber reader1 = startGrabber(tid2, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber reader2 = startGrabber(tid3, p0, Permissions.READ_ONLY);
+    assertFalse(reader1.acquired());
+    assertFalse(reader2.acquired());
+
+    bp.transactionComplete(tid1);
+    Thread.sleep(TIMEOUT);
+    assertTrue(reader1.acquired());
+    assertTrue(reader2.acquired());
+    bp.transactionComplete(tid2);
+    bp.transactionComplete(tid3);
+  }
+
+  /**
+   * Unit test for LockManager queueing.
+   * An upgrade by a read lock holder goes ahead of write locks that were
+   * already waiting.
+   */
+  @Test public void upgradeJumpsQueue() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = startGrabber(tid3, p0, Permissions.READ_WRITE);
+    assertFalse(writer.acquired());
+
+    // blocked by the other reader, tid2
+    TestUtil.LockGrabber upgrade = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    assertFalse(upgrade.acquired());
+
+    bp.releasePage(tid2, p0);
+    Thread.sleep(TIMEOUT);
+    assertTrue(upgrade.acquired());
+    assertFalse(writer.acquired());
+
+    bp.transactionComplete(tid1);
+    Thread.sleep(TIMEOUT);
+    assertTrue(writer.acquired());
+    bp.transactionComplete(tid3);
+  }
+
   /**
    * JUnit suite target
    */
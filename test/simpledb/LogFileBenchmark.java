@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures LogFile commit throughput as the number of threads grows. Each
+ * thread runs empty transactions that write a BEGIN and a COMMIT record;
+ * every commit must wait for the log to be forced, so throughput only grows
+ * with the number of threads if commits share their forces (group commit).
+ * <p>
+ * Run with: java -cp bin/src:bin/test simpledb.LogFileBenchmark [seconds]
+ * [flush interval millis] [batch size]
+ */
+public class LogFileBenchmark {
+
+    private static long[] run(final int numThreads, final long millis,
+            long intervalMillis, int batchSize) throws Exception {
+        File f = File.createTempFile("logbench", ".log");
+        f.deleteOnExit();
+        final LogFile log = new LogFile(f);
+        log.setGroupCommit(intervalMillis, batchSize);
+        final long[] counts = new long[numThreads];
+        final long end = System.currentTimeMillis() + millis;
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int t = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    long n = 0;
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                            n++;
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    counts[t] = n;
+                }
+            };
+        }
+        for (Thread th : threads)
+            th.start();
+        for (Thread th : threads)
+            th.join();
+        long total = 0;
+        for (long c : counts)
+            total += c;
+        long forces = log.getForceCount();
+        f.delete();
+        return new long[] { total, forces };
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2;
+        long interval = args.length > 1 ? Long.parseLong(args[1])
+                : LogFile.DEFAULT_FLUSH_INTERVAL_MILLIS;
+        int batch = args.length > 2 ? Integer.parseInt(args[2])
+                : LogFile.DEFAULT_FLUSH_BATCH_SIZE;
+        // warm up the JIT
+        run(1, 500, interval, batch);
+        System.out.println("threads\tcommits/sec\tcommits/force");
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            long[] r = run(threads, seconds * 1000, interval, batch);
+            System.out.println(threads + "\t" + (r[0] / seconds) + "\t"
+                    + String.format("%.1f", (double) r[0] / Math.max(1, r[1])));
+        }
+    }
+}
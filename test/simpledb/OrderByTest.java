@@ -0,0 +1,165 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  int width = 2;
+  int n = 1000;
+  int[] data;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createData() {
+    Random r = new Random(7);
+    data = new int[n * width];
+    for (int i = 0; i < data.length; i++)
+      data[i] = r.nextInt(50);
+  }
+
+  private OpIterator scan() {
+    return TestUtil.createTupleList(width, data);
+  }
+
+  /** @return the rows of data sorted on field 0 ascending, then 1 descending */
+  private ArrayList<int[]> expected() {
+    ArrayList<int[]> rows = new ArrayList<int[]>();
+    for (int i = 0; i < n; i++)
+      rows.add(new int[] { data[i * width], data[i * width + 1] });
+    java.util.Collections.sort(rows, new java.util.Comparator<int[]>() {
+      public int compare(int[] a, int[] b) {
+        if (a[0] != b[0])
+          return a[0] < b[0] ? -1 : 1;
+        return a[1] < b[1] ? 1 : (a[1] == b[1] ? 0 : -1);
+      }
+    });
+    return rows;
+  }
+
+  private void checkOrder(ArrayList<int[]> expected, OpIterator op, int count)
+      throws Exception {
+    for (int i = 0; i < count; i++) {
+      assertTrue(op.hasNext());
+      Tuple t = op.next();
+      assertEquals(expected.get(i)[0], ((IntField) t.getField(0)).getValue());
+      assertEquals(expected.get(i)[1], ((IntField) t.getField(1)).getValue());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Unit test for OrderBy on one field, sorted in memory
+   */
+  @Test public void singleField() throws Exception {
+    OrderBy op = new OrderBy(0, false, scan());
+    op.open();
+    int last = Integer.MAX_VALUE;
+    int count = 0;
+    while (op.hasNext()) {
+      int v = ((IntField) op.next().getField(0)).getValue();
+      assertTrue(v <= last);
+      last = v;
+      count++;
+    }
+    assertEquals(n, count);
+    op.close();
+  }
+
+  /**
+   * OrderBy on two fields must return the same order when its memory budget
+   * forces sorted runs to disk, with more runs than can be merged in one pass
+   */
+  @Test public void externalMultiField() throws Exception {
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+        scan(), OrderBy.NO_LIMIT, 7);
+    ArrayList<int[]> expected = expected();
+    op.open();
+    checkOrder(expected, op, n);
+    op.rewind();
+    checkOrder(expected, op, n);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy with a limit, both kept in memory and merged from
+   * runs
+   */
+  @Test public void topN() throws Exception {
+    ArrayList<int[]> expected = expected();
+    int[] fields = new int[] { 0, 1 };
+    boolean[] ascs = new boolean[] { true, false };
+    OrderBy op = new OrderBy(fields, ascs, scan(), 25, 100);
+    op.open();
+    checkOrder(expected, op, 25);
+    op.rewind();
+    checkOrder(expected, op, 25);
+    op.close();
+
+    op = new OrderBy(fields, ascs, scan(), 300, 100);
+    op.open();
+    checkOrder(expected, op, 300);
+    op.close();
+
+    op = new OrderBy(fields, ascs, scan(), 0, 100);
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /** @return the number of OrderBy runs in the temporary directory */
+  private static int numRunFiles() {
+    String[] names = new File(System.getProperty("java.io.tmpdir")).list();
+    int count = 0;
+    for (String name : names) {
+      if (name.startsWith("orderby"))
+        count++;
+    }
+    return count;
+  }
+
+  /**
+   * The runs written before the child fails are deleted by open, without
+   * waiting for close
+   */
+  @Test public void childFailureDeletesRuns() throws Exception {
+    int before = numRunFiles();
+    OpIterator failing = new TestUtil.MockScan(0, n, width) {
+      private int read = 0;
+
+      public Tuple next() throws DbException, TransactionAbortedException {
+        if (++read > n / 2)
+          throw new DbException("child failed");
+        return super.next();
+      }
+    };
+    OrderBy op = new OrderBy(new int[] { 0 }, new boolean[] { true },
+        failing, OrderBy.NO_LIMIT, 7);
+    try {
+      op.open();
+      fail("the failure of the child was not reported");
+    } catch (DbException e) {
+      // expected
+    }
+    assertEquals(before, numRunFiles());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.EvictionFilter ANY =
+            new ReplacementPolicy.EvictionFilter() {
+                public boolean canEvict(PageId pid) {
+                    return true;
+                }
+            };
+
+    /**
+     * Access pid in a pool of the given capacity through the policy,
+     * evicting the policy's victim first if the pool is full; resident is
+     * updated to the set of pages in the pool.
+     */
+    private static void access(ReplacementPolicy policy, HashSet<PageId> resident,
+            int capacity, PageId pid) {
+        if (!resident.contains(pid) && resident.size() >= capacity) {
+            PageId victim = policy.chooseVictim(ANY);
+            assertTrue(resident.remove(victim));
+        }
+        resident.add(pid);
+        policy.recordAccess(pid);
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy: recently referenced pages get a
+     * second chance.
+     */
+    @Test public void clockSecondChance() {
+        ClockReplacementPolicy clock = new ClockReplacementPolicy(3);
+        HeapPageId p0 = new HeapPageId(-1, 0);
+        HeapPageId p1 = new HeapPageId(-1, 1);
+        HeapPageId p2 = new HeapPageId(-1, 2);
+        clock.recordAccess(p0);
+        clock.recordAccess(p1);
+        clock.recordAccess(p2);
+        // all bits set: the first sweep clears them and p0 goes first
+        assertEquals(p0, clock.chooseVictim(ANY));
+        clock.recordAccess(p1);
+        assertEquals(p2, clock.chooseVictim(ANY));
+        assertEquals(p1, clock.chooseVictim(ANY));
+        assertNull(clock.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for eviction filters: pages that cannot be evicted are
+     * skipped, and null is returned when nothing can be evicted.
+     */
+    @Test public void skipsPinnedPages() {
+        final HeapPageId pinned = new HeapPageId(-1, 0);
+        ReplacementPolicy.EvictionFilter notPinned = new ReplacementPolicy.EvictionFilter() {
+            public boolean canEvict(PageId pid) {
+                return !pid.equals(pinned);
+            }
+        };
+        ReplacementPolicy[] policies = new ReplacementPolicy[] {
+                new ClockReplacementPolicy(4), new TwoQueueReplacementPolicy(4) };
+        for (ReplacementPolicy policy : policies) {
+            policy.recordAccess(pinned);
+            policy.recordAccess(new HeapPageId(-1, 1));
+            assertEquals(new HeapPageId(-1, 1), policy.chooseVictim(notPinned));
+            assertNull(policy.chooseVictim(notPinned));
+            policy.remove(pinned);
+            assertNull(policy.chooseVictim(ANY));
+        }
+    }
+
+    /**
+     * Unit test for TwoQueueReplacementPolicy: a sequential scan larger than
+     * the buffer pool does not evict a page that is used repeatedly.
+     */
+    @Test public void twoQueueScanResistance() {
+        int capacity = 16;
+        TwoQueueReplacementPolicy policy = new TwoQueueReplacementPolicy(capacity);
+        HashSet<PageId> resident = new HashSet<PageId>();
+        HeapPageId hot = new HeapPageId(-2, 0);
+
+        // the hot page is evicted once, then promoted on its next use
+        access(policy, resident, capacity, hot);
+        for (int i = 0; i < capacity; i++)
+            access(policy, resident, capacity, new HeapPageId(-1, i));
+        access(policy, resident, capacity, hot);
+
+        for (int i = capacity; i < 20 * capacity; i++) {
+            access(policy, resident, capacity, new HeapPageId(-1, i));
+            assertTrue(resident.contains(hot));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
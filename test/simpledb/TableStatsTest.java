@@ -151,4 +151,63 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Verify that persisted statistics are reloaded with the same estimates,
+	 * and are ignored once the table has changed.
+	 */
+	@Test public void saveAndLoadStatisticsTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		java.io.File statsFile = TableStats.getStatsFile(this.tableId);
+		statsFile.deleteOnExit();
+		s.saveStatistics();
+		
+		TableStats loaded = TableStats.loadStatistics(this.tableId, IO_COST);
+		Assert.assertNotNull(loaded);
+		Assert.assertEquals(s.totalTuples(), loaded.totalTuples());
+		Assert.assertEquals(s.estimateScanCost(), loaded.estimateScanCost(), 0.001);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(s.numDistinctValues(col), loaded.numDistinctValues(col));
+			Assert.assertEquals(s.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)),
+					loaded.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)), 0.001);
+		}
+		
+		// a stats file older than its table must not be used
+		Assert.assertTrue(f.getFile().setLastModified(f.getFile().lastModified() + 10000));
+		Assert.assertNull(TableStats.loadStatistics(this.tableId, IO_COST));
+	}
+
+	/**
+	 * Verify the estimates of a table larger than the sample analyze keeps:
+	 * the row count is exact, and the distinct counts and selectivities
+	 * are close to those of the whole table.
+	 */
+	@Test public void sampledStatisticsTest() throws Exception {
+		final int maxValue = 1 << 20;
+		final int rows = 3 * TableStats.SAMPLE_SIZE;
+		ArrayList<ArrayList<Integer>> big = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, maxValue, null, big);
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+
+		Assert.assertEquals(rows, s.totalTuples());
+		for (int col = 0; col < 2; col++) {
+			java.util.HashSet<Integer> values = new java.util.HashSet<Integer>();
+			int below = 0;
+			for (ArrayList<Integer> t : big) {
+				values.add(t.get(col));
+				if (t.get(col) < maxValue / 2)
+					below++;
+			}
+			Assert.assertEquals(values.size(), s.numDistinctValues(col), values.size() * 0.1);
+			Assert.assertEquals((double) below / rows,
+					s.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(maxValue / 2)), 0.02);
+		}
+
+		// a sample that saw every value of a small domain many times
+		int[] sample = new int[1000];
+		for (int i = 0; i < sample.length; i++)
+			sample[i] = i / 10;
+		Assert.assertEquals(100, TableStats.estimateDistinct(sample, 100000));
+	}
 }
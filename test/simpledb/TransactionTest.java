@@ -112,6 +112,25 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for BufferPool.transactionComplete() assuming abort, when the
+   * transaction modified a page it locked exclusively but failed before
+   * marking it dirty, as a DbFile operation aborted half way does.
+   */
+  @Test public void abortRestoresUnmarkedPage() throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    int empty = p.getNumEmptySlots();
+
+    Tuple t = Utility.getHeapTuple(new int[] { 6, 830 });
+    t.setRecordId(new RecordId(p2, 1));
+    p.insertTuple(t);
+    bp.transactionComplete(tid1, false);
+
+    // the same buffer pool must not return the modified page
+    p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_ONLY);
+    assertEquals(empty, p.getNumEmptySlots());
+  }
+
   /**
    * JUnit suite target
    */
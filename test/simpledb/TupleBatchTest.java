@@ -0,0 +1,137 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+    // the rows of each batch of it, which must all hold at most maxRows
+    private static List<ArrayList<Integer>> readBatches(BatchIterator it, int maxRows)
+            throws Exception {
+        List<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        TupleBatch b;
+        while ((b = it.nextBatch(maxRows)) != null) {
+            assertTrue(b.numSelected() > 0);
+            assertTrue(b.numRows() <= maxRows);
+            for (int k = 0; k < b.numSelected(); k++)
+                rows.add(SystemTestUtil.tupleToList(b.getTuple(b.selected(k))));
+        }
+        return rows;
+    }
+
+    private static List<ArrayList<Integer>> readTuples(OpIterator it) throws Exception {
+        List<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            rows.add(SystemTestUtil.tupleToList(it.next()));
+        return rows;
+    }
+
+    private static Project scanFilterProject(TransactionId tid, HeapFile f) {
+        SeqScan ss = new SeqScan(tid, f.getId(), "t");
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN,
+                new IntField(1 << 15)), ss);
+        return new Project(new ArrayList<Integer>(Arrays.asList(2, 0)),
+                new Type[] { Type.INT_TYPE, Type.INT_TYPE }, filter);
+    }
+
+    /**
+     * A scan, filter and projection return the same rows in batches as
+     * one at a time
+     */
+    @Test public void scanFilterProject() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 3000, null, null);
+        TransactionId tid = new TransactionId();
+
+        Project tuples = scanFilterProject(tid, f);
+        tuples.open();
+        List<ArrayList<Integer>> expected = readTuples(tuples);
+        tuples.close();
+        assertTrue(expected.size() > 0);
+
+        Project batches = scanFilterProject(tid, f);
+        batches.open();
+        assertEquals(expected, readBatches(batches, 100));
+        batches.rewind();
+        assertEquals(expected, readBatches(batches, TupleBatch.DEFAULT_SIZE));
+        batches.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A tuple buffered by hasNext is the first row of the next batch
+     */
+    @Test public void hasNextThenBatch() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 500, null, null);
+        TransactionId tid = new TransactionId();
+        Project p = scanFilterProject(tid, f);
+        p.open();
+        List<ArrayList<Integer>> expected = readTuples(p);
+        p.rewind();
+        assertTrue(p.hasNext());
+        assertEquals(expected, readBatches(p, 64));
+        assertNull(p.nextBatch(64));
+        p.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * HashEquiJoin returns the same rows in batches, including those of
+     * spilled partitions
+     */
+    @Test public void hashJoin() throws Exception {
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, null);
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 2000, 500, null, null);
+        TransactionId tid = new TransactionId();
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+
+        HashEquiJoin tuples = new HashEquiJoin(pred, new SeqScan(tid, f1.getId(), "a"),
+                new SeqScan(tid, f2.getId(), "b"), 300);
+        tuples.open();
+        List<ArrayList<Integer>> expected = readTuples(tuples);
+        tuples.close();
+
+        HashEquiJoin batches = new HashEquiJoin(pred, new SeqScan(tid, f1.getId(), "a"),
+                new SeqScan(tid, f2.getId(), "b"), 300);
+        batches.open();
+        List<ArrayList<Integer>> actual = readBatches(batches, 256);
+        batches.close();
+
+        assertTrue(expected.size() > 0);
+        Collections.sort(expected, ROWS);
+        Collections.sort(actual, ROWS);
+        assertEquals(expected, actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static final java.util.Comparator<ArrayList<Integer>> ROWS =
+            new java.util.Comparator<ArrayList<Integer>>() {
+        public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+            for (int i = 0; i < a.size(); i++) {
+                int c = a.get(i).compareTo(b.get(i));
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchTest.class);
+    }
+}
@@ -57,6 +57,24 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * Unit test for Tuple.merge(), Tuple.project() and Tuple.getInt()
+     */
+    @Test public void mergeAndProject() {
+        Tuple t1 = Utility.getHeapTuple(new int[] { 1, 2 });
+        Tuple t2 = Utility.getHeapTuple(new int[] { 3, 4, 5 });
+        TupleDesc td = TupleDesc.merge(t1.getTupleDesc(), t2.getTupleDesc());
+
+        Tuple merged = Tuple.merge(td, t1, t2);
+        assertEquals(td, merged.getTupleDesc());
+        for (int i = 0; i < 5; i++)
+            assertEquals(i + 1, merged.getInt(i));
+
+        Tuple projected = Tuple.project(Utility.getTupleDesc(2), merged, new int[] { 4, 0 });
+        assertEquals(new IntField(5), projected.getField(0));
+        assertEquals(1, projected.getInt(1));
+    }
+
     /**
      * JUnit suite target
      */
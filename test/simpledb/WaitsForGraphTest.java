@@ -0,0 +1,81 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class WaitsForGraphTest extends SimpleDbTestBase {
+
+    private TransactionId t1, t2, t3;
+    private HashMap<TransactionId, Integer> locks;
+    private WaitsForGraph.LockCounter counter;
+
+    @Before public void createTids() {
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+        locks = new HashMap<TransactionId, Integer>();
+        counter = new WaitsForGraph.LockCounter() {
+            public int numLocks(TransactionId tid) {
+                Integer n = locks.get(tid);
+                return n == null ? 0 : n;
+            }
+        };
+    }
+
+    private static Set<TransactionId> set(TransactionId... tids) {
+        return new HashSet<TransactionId>(Arrays.asList(tids));
+    }
+
+    /**
+     * Unit test for WaitsForGraph.block(): chains of waiters are not
+     * deadlocks, and closing a cycle aborts its youngest transaction.
+     */
+    @Test public void youngestVictim() {
+        WaitsForGraph g = new WaitsForGraph(WaitsForGraph.VictimPolicy.YOUNGEST, counter);
+        assertNull(g.block(t1, set(t2)));
+        assertNull(g.block(t2, set(t3)));
+        assertEquals(t3, g.block(t3, set(t1)));
+        // the victim's edges are gone, so the rest of the cycle is broken
+        assertNull(g.block(t1, set(t2)));
+    }
+
+    /**
+     * Unit test for WaitsForGraph.block() with the FEWEST_LOCKS policy.
+     */
+    @Test public void fewestLocksVictim() {
+        WaitsForGraph g = new WaitsForGraph(WaitsForGraph.VictimPolicy.FEWEST_LOCKS, counter);
+        locks.put(t1, 1);
+        locks.put(t2, 5);
+        assertNull(g.block(t2, set(t1)));
+        assertEquals(t1, g.block(t1, set(t2)));
+    }
+
+    /**
+     * Unit test for WaitsForGraph.unblock(): a transaction that stopped
+     * waiting cannot be part of a cycle.
+     */
+    @Test public void unblock() {
+        WaitsForGraph g = new WaitsForGraph(WaitsForGraph.VictimPolicy.YOUNGEST, counter);
+        assertNull(g.block(t1, set(t2)));
+        g.unblock(t1);
+        assertNull(g.block(t2, set(t1)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WaitsForGraphTest.class);
+    }
+}
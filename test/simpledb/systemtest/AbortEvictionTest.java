@@ -38,6 +38,59 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    private static int countTuples(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int count = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            count++;
+        }
+        ss.close();
+        return count;
+    }
+
+    /** A transaction dirtying more pages than the buffer pool holds must
+     * run, its stolen pages being written out; aborting it must restore
+     * them from the log, and committing it must keep its changes.
+     */
+    @Test public void testStealDirtyPages()
+            throws IOException, DbException, TransactionAbortedException {
+        // Allocate a file with ~10 pages of data
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(3);
+
+        // delete every tuple, then abort
+        Transaction t = new Transaction();
+        t.start();
+        Delete delete = new Delete(t.getId(), new SeqScan(t.getId(), f.getId(), ""));
+        delete.open();
+        assertEquals(512*10, ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        assertEquals(0, countTuples(f, t));
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertEquals(512*10, countTuples(f, t));
+        t.commit();
+
+        // delete every tuple, then commit
+        t = new Transaction();
+        t.start();
+        delete = new Delete(t.getId(), new SeqScan(t.getId(), f.getId(), ""));
+        delete.open();
+        delete.next();
+        delete.close();
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(0, countTuples(f, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
@@ -441,6 +441,501 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestRedoSkipsCurrentPages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // FORCE commit, crash, recover: the committed pages are on disk
+        // already, so redo rewrites none of them
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 3, 4);
+        crash();
+        assertEquals(0, Database.getLogFile().getRedoWriteCount());
+
+        // NO-FORCE commit, crash, recover: the page is only in the log
+        Database.getBufferPool().setNoForce(true);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 5, 0);
+        t1.commit();
+        crash();
+        assertEquals(1, Database.getLogFile().getRedoWriteCount());
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 3, true);
+        look(hf2, t, 4, true);
+        look(hf1, t, 5, true);
+        t.commit();
+    }
+
+    @Test public void TestRedoReadsBoundedByCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // redo reads only the pages logged since the last checkpoint,
+        // and none once a checkpoint found every page clean
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 3, 4);
+        crash();
+        assertEquals(2, Database.getLogFile().getRedoReadCount());
+
+        doInsert(hf1, 5, 6);
+        Database.getLogFile().logCheckpoint();
+        crash();
+        assertEquals(0, Database.getLogFile().getRedoReadCount());
+
+        // recovery ends with a checkpoint, so only the new page is read
+        doInsert(hf2, 7, 8);
+        crash();
+        assertEquals(1, Database.getLogFile().getRedoReadCount());
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 5, true);
+        look(hf2, t, 3, true);
+        look(hf2, t, 7, true);
+        t.commit();
+    }
+
+    @Test public void TestLoggedImagesBounded()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.resetBufferPool(1);
+
+        // *** Test:
+        // the log keeps the last image of no more pages than the buffer
+        // pool holds; a page whose image was dropped is logged in full
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 3, 4);
+        assertEquals(1, Database.getLogFile().getLoggedImageCount());
+        doInsert(hf1, 5, 6);
+        assertEquals(1, Database.getLogFile().getLoggedImageCount());
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 5, true);
+        look(hf1, t, 6, true);
+        look(hf2, t, 3, true);
+        look(hf2, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestNoForceCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // NO-FORCE commit, abort on the same page, crash, recover:
+        // the committed data is redone from the log
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1, 0);
+        insertRow(hf2, t1, 2, 0);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 3, 0);
+        t2.transactionComplete(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf2, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf2, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestNoForceBackgroundWriter()
+            throws IOException, DbException, TransactionAbortedException,
+            InterruptedException {
+        setup();
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // NO-FORCE commit: the background writer writes the pages out and
+        // records a redo point, so a fresh buffer pool sees the data
+        // without recovery
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 1, 0);
+        t1.commit();
+
+        for (int i = 0; i < 200 && Database.getBufferPool().numUnwrittenPages() > 0; i++)
+            Thread.sleep(50);
+        assertEquals(0, Database.getBufferPool().numUnwrittenPages());
+
+        // the start of the log points at the redo point
+        RandomAccessFile log = new RandomAccessFile(new File("log"), "r");
+        assertTrue(log.readLong() > 0);
+        log.close();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommit()
+            throws IOException, DbException, TransactionAbortedException,
+            InterruptedException {
+        setup();
+        final int n = 8;
+        Database.getLogFile().setGroupCommit(5000, n);
+        // commits that do not force their pages
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // concurrent commits share one force of the log, and all of them
+        // are recovered after a crash
+
+        // a table per transaction, so that they do not wait for each
+        // other's locks
+        File[] files = new File[n];
+        HeapFile[] hfs = new HeapFile[n];
+        final Transaction[] ts = new Transaction[n];
+        for (int i = 0; i < n; i++) {
+            files[i] = new File("simple_gc" + i + ".db");
+            files[i].delete();
+            hfs[i] = Utility.createEmptyHeapFile(files[i].getAbsolutePath(), 2);
+            ts[i] = new Transaction();
+            ts[i].start();
+            insertRow(hfs[i], ts[i], 100 + i, 0);
+        }
+        long forcesBefore = Database.getLogFile().getForceCount();
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            final Transaction tr = ts[i];
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        tr.commit();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread th : threads)
+            th.join();
+        // the batch fills long before the flush interval is over
+        assertTrue(Database.getLogFile().getForceCount() - forcesBefore < n);
+
+        // crash, reopening every table before recovery
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        for (int i = 0; i < n; i++)
+            hfs[i] = Utility.openHeapFile(2, files[i]);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < n; i++)
+            look(hfs[i], t, 100 + i, true);
+        t.commit();
+        for (File f : files)
+            f.delete();
+    }
+
+    @Test public void TestDeltaRecords()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a commit that changes one tuple of a logged page writes a delta,
+        // not two page images; recovery redoes it and undoes an aborted one
+
+        long before = Database.getLogFile().getLogEnd();
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+        assertTrue(Database.getLogFile().getLogEnd() - before < BufferPool.getPageSize() / 4);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4, 0);
+        Database.getBufferPool().flushAllPages();
+        insertRow(hf1, t2, 5, 0);
+        abort(t2);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        look(hf1, t, 5, false);
+        t.commit();
+    }
+
+    @Test public void TestRepeatedCrashTornTail()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a loser undone by one recovery stays undone by the next, and a
+        // torn record at the end of the log is cut off
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        look(hf1, t2, 3, false);
+        insertRow(hf1, t2, 4, 0);
+        t2.commit();
+
+        // half a record in the last segment
+        File last = null;
+        for (File f : new File("log").getAbsoluteFile().getParentFile().listFiles()) {
+            if (f.getName().matches("log\\.\\d+") && (last == null
+                    || Long.parseLong(f.getName().substring(4)) > Long.parseLong(last.getName().substring(4))))
+                last = f;
+        }
+        RandomAccessFile log = new RandomAccessFile(last, "rw");
+        log.seek(log.length());
+        log.writeByte(1);
+        log.writeInt(7);
+        log.close();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, true);
+        insertRow(hf1, t, 5, 0);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, true);
+        look(hf1, t, 5, true);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+        Database.getBufferPool().setNoForce(true);
+
+        // *** Test:
+        // a checkpoint does not flush committed pages; recovery redoes
+        // them from the records before the checkpoint
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        t1.commit();
+
+        // the page stays unwritten while a running transaction updates it
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 4, 0);
+        HeapPage before = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        Database.getLogFile().logCheckpoint();
+        HeapPage after = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        assertEquals(before.getNumEmptySlots(), after.getNumEmptySlots());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestAutomaticCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getLogFile().setCheckpointPolicy(1, 0);
+
+        // *** Test:
+        // a commit after enough log takes a checkpoint
+
+        doInsert(hf1, 1, 2);
+        RandomAccessFile log = new RandomAccessFile(new File("log"), "r");
+        assertTrue(log.readLong() > 0);
+        log.close();
+
+        doInsert(hf2, 3, 4);
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf2, t, 4, true);
+        t.commit();
+    }
+
+    @Test public void TestSegmentTruncation()
+            throws IOException, DbException, TransactionAbortedException {
+        System.setProperty(LogFile.SEGMENT_SIZE_PROPERTY, "4096");
+        try {
+            setup();
+            doInsert(hf1, 1, 2);
+
+            // *** Test:
+            // a checkpoint deletes the segments before the oldest record
+            // still needed, and recovery reads the segments that are left
+
+            for (int i = 0; i < 20; i++) {
+                Transaction t = new Transaction();
+                t.start();
+                insertRow(hf2, t, 1000 + i, 0);
+                t.commit();
+            }
+            Transaction t1 = new Transaction();
+            t1.start();
+            insertRow(hf1, t1, 3, 0);
+            Database.getBufferPool().flushAllPages();
+
+            int segments = Database.getLogFile().getNumSegments();
+            assertTrue(segments > 2);
+            Database.getLogFile().logCheckpoint();
+            assertTrue(Database.getLogFile().getNumSegments() < segments);
+
+            crash();
+
+            Transaction t = new Transaction();
+            t.start();
+            look(hf1, t, 1, true);
+            look(hf1, t, 3, false);
+            for (int i = 0; i < 20; i++)
+                look(hf2, t, 1000 + i, true);
+            t.commit();
+        } finally {
+            System.clearProperty(LogFile.SEGMENT_SIZE_PROPERTY);
+        }
+    }
+
+    @Test public void TestInterleavedLosersCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 and T3 each update both tables, with a commit between their
+        // updates; T1 aborts along its own records, and recovery undoes T3
+        // along its own, across a checkpoint
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        Database.getBufferPool().flushAllPages();
+        doInsert(hf2, 21, 22);
+        insertRow(hf2, t1, 23, 0);
+        Database.getBufferPool().flushAllPages();
+        abort(t1);
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf1, t3, 4, 0);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+        doInsert(hf2, 24, 25);
+        insertRow(hf2, t3, 26, 0);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        look(hf2, t, 21, true);
+        look(hf2, t, 22, true);
+        look(hf2, t, 23, false);
+        look(hf2, t, 24, true);
+        look(hf2, t, 25, true);
+        look(hf2, t, 26, false);
+        t.commit();
+    }
+
+    @Test public void TestLargeLogAbortCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a log many times larger than the log buffer: an abort undoes its
+        // updates through earlier commits, and recovery redoes the commits
+
+        final int n = 60;
+        for (int i = 0; i < n; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insertRow(hf2, t, 1000 + i, 0);
+            t.commit();
+        }
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        Database.getBufferPool().flushAllPages();
+        for (int i = 0; i < n; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            insertRow(hf2, t, 2000 + i, 0);
+            t.commit();
+        }
+        abort(t1);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        for (int i = 0; i < n; i++) {
+            look(hf2, t, 1000 + i, true);
+            look(hf2, t, 2000 + i, true);
+        }
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);